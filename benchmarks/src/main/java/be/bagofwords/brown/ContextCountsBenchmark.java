@@ -0,0 +1,46 @@
+package be.bagofwords.brown;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ContextCountsImpl.mergeClusters() when all infrequent phrases of a Zipfian corpus are merged with the clusters of the
+ * NUMBER_OF_CLUSTERS most frequent phrases, as in BrownClustering.mergeInfrequentPhrasesWithFrequentPhraseClusters(). Every invocation
+ * starts from a fresh copy of the counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ContextCountsBenchmark {
+
+    private static final int NUMBER_OF_WORDS = 2000000;
+    private static final int NUMBER_OF_CLUSTERS = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int vocabularySize;
+
+    private ContextCountsImpl phraseContextCounts;
+    private ContextCountsImpl contextCounts;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        phraseContextCounts = ZipfianCorpus.createContextCounts(vocabularySize, NUMBER_OF_WORDS, 42).toContextCountsImpl();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        contextCounts = phraseContextCounts.clone();
+    }
+
+    @Benchmark
+    public ContextCountsImpl mergeClusters() {
+        for (int phrase = vocabularySize - 1; phrase >= NUMBER_OF_CLUSTERS; phrase--) {
+            contextCounts.mergeClusters(phrase, phrase % NUMBER_OF_CLUSTERS);
+        }
+        return contextCounts;
+    }
+}
@@ -0,0 +1,61 @@
+package be.bagofwords.brown;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two passes over the corpus: counting all phrases (with the BufferedReader and with the memory mapped CorpusTokenizer) and counting
+ * all bigrams of the phrases. The corpus is a temporary file with a Zipfian distribution of words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CorpusPassBenchmark {
+
+    private static final int NUMBER_OF_WORDS = 10000000;
+
+    @Param({"1000", "10000", "100000"})
+    public int vocabularySize;
+
+    private File corpus;
+    private Vocabulary vocabulary;
+
+    @Setup
+    public void setUp() throws IOException {
+        corpus = ZipfianCorpus.writeTemporaryCorpus(vocabularySize, NUMBER_OF_WORDS, 42);
+        vocabulary = new Vocabulary();
+        for (String phrase : BrownClustering.countAllPhrasesMemoryMapped(corpus.getAbsolutePath()).keySet()) {
+            vocabulary.add(phrase);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (!corpus.delete()) {
+            throw new RuntimeException("Could not delete " + corpus);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Integer> countPhrasesWithReader() throws IOException {
+        return BrownClustering.countAllPhrasesWithReader(corpus.getAbsolutePath());
+    }
+
+    @Benchmark
+    public Map<String, Integer> countPhrasesMemoryMapped() throws IOException {
+        return BrownClustering.countAllPhrasesMemoryMapped(corpus.getAbsolutePath());
+    }
+
+    @Benchmark
+    public CompactContextCounts countBigramsMemoryMapped() throws IOException {
+        BigramCounter bigramCounter = CorpusTokenizer.tokenizeInParallel(corpus.getAbsolutePath(), () -> new BigramCounter(vocabulary, -1), BigramCounter::merge);
+        return CompactContextCounts.fromBigramCounts(vocabulary.size(), bigramCounter.getBigramCounts());
+    }
+}
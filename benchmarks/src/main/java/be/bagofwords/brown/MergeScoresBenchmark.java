@@ -0,0 +1,60 @@
+package be.bagofwords.brown;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores of all merge candidates of the hierarchical clustering, computed from scratch (BrownClustering.computeAllScores()) and with the
+ * merge loss table, and a complete hierarchical clustering with the merge loss table. The clusters are the phrases of a Zipfian corpus
+ * with numberOfClusters distinct phrases.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MergeScoresBenchmark {
+
+    private static final int NUMBER_OF_WORDS = 2000000;
+
+    @Param({"100", "500", "1000"})
+    public int numberOfClusters;
+
+    private ContextCountsImpl clusterContextCounts;
+    private ContextCountsImpl contextCounts;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        clusterContextCounts = ZipfianCorpus.createContextCounts(numberOfClusters, NUMBER_OF_WORDS, 42).toContextCountsImpl();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        contextCounts = clusterContextCounts.clone();
+    }
+
+    @Benchmark
+    public void computeAllScores(Blackhole blackhole) {
+        //MergeCandidateQueue and MergeLossTable are package private, so they can not be returned to the generated benchmark code
+        blackhole.consume(BrownClustering.computeAllScores(contextCounts));
+    }
+
+    @Benchmark
+    public void createMergeLossTable(Blackhole blackhole) {
+        blackhole.consume(new MergeLossTable(contextCounts));
+    }
+
+    @Benchmark
+    public ContextCountsImpl mergeAllClustersWithLossTable() {
+        MergeLossTable mergeLossTable = new MergeLossTable(contextCounts);
+        while (mergeLossTable.getNumberOfClusters() > 1) {
+            MergeCandidate next = mergeLossTable.findBestMerge();
+            mergeLossTable.mergeClusters(next.getCluster1(), next.getCluster2());
+            contextCounts.mergeClusters(next.getCluster1(), next.getCluster2());
+        }
+        return contextCounts;
+    }
+}
@@ -0,0 +1,70 @@
+package be.bagofwords.brown;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kernels of MutualInformationUtils on the context counts of a Zipfian corpus, where every phrase has its own cluster. Scores are computed
+ * for pairs of the most frequent clusters, these have the largest context counts. Every kernel is measured with and without log table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MutualInformationBenchmark {
+
+    private static final int NUMBER_OF_WORDS = 2000000;
+    private static final int NUMBER_OF_SCORED_CLUSTERS = 1000;
+
+    @Param({"1000", "10000", "100000"})
+    public int vocabularySize;
+
+    @Param({"0", "1048576"})
+    public int logTableSize;
+
+    private ContextCountsImpl contextCounts;
+    private int[] clusters;
+    private double[] sk;
+    private int cluster1;
+    private int cluster2;
+
+    @Setup
+    public void setUp() {
+        contextCounts = ZipfianCorpus.createContextCounts(vocabularySize, NUMBER_OF_WORDS, 42).toContextCountsImpl();
+        contextCounts.setLogTable(logTableSize > 0 ? new LogTable(logTableSize) : null);
+        clusters = contextCounts.getAllClusters().sorted().limit(NUMBER_OF_SCORED_CLUSTERS).toArray();
+        sk = new double[clusters.length];
+        for (int ind = 0; ind < clusters.length; ind++) {
+            sk[ind] = MutualInformationUtils.computeSK(clusters[ind], contextCounts);
+        }
+    }
+
+    @Benchmark
+    public double computeSK() {
+        cluster1 = (cluster1 + 1) % clusters.length;
+        return MutualInformationUtils.computeSK(clusters[cluster1], contextCounts);
+    }
+
+    @Benchmark
+    public double computeMergeScore() {
+        nextPair();
+        return MutualInformationUtils.computeMergeScore(clusters[cluster1], sk[cluster1], clusters[cluster2], sk[cluster2], contextCounts);
+    }
+
+    @Benchmark
+    public double computeMergeScoreWithMergedCounts() {
+        nextPair();
+        return MutualInformationUtils.computeMergeScoreWithMergedCounts(clusters[cluster1], sk[cluster1], clusters[cluster2], sk[cluster2], contextCounts);
+    }
+
+    private void nextPair() {
+        cluster2++;
+        if (cluster2 == clusters.length) {
+            cluster1 = (cluster1 + 1) % (clusters.length - 1);
+            cluster2 = cluster1 + 1;
+        }
+    }
+}
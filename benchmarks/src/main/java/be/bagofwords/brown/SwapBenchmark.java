@@ -0,0 +1,70 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scores of moving a phrase to every cluster, as computed in BrownClustering.swapPhrases(). Phrases of a Zipfian corpus are assigned to
+ * NUMBER_OF_CLUSTERS clusters. Compares the scores computed through SwapWordContextCounts with the scores of SwapScoreEvaluator.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SwapBenchmark {
+
+    private static final int NUMBER_OF_WORDS = 2000000;
+    private static final int NUMBER_OF_CLUSTERS = 100;
+    private static final int NUMBER_OF_SWAPPED_PHRASES = 1000;
+
+    @Param({"1000", "10000", "100000"})
+    public int vocabularySize;
+
+    private CompactContextCounts phraseContextCounts;
+    private Int2IntOpenHashMap phraseToClusterMap;
+    private ContextCountsImpl clusterContextCounts;
+    private int[] clusters;
+    private SwapScoreEvaluator swapScoreEvaluator;
+    private int phrase;
+
+    @Setup
+    public void setUp() {
+        phraseContextCounts = ZipfianCorpus.createContextCounts(vocabularySize, NUMBER_OF_WORDS, 42);
+        phraseToClusterMap = ZipfianCorpus.assignToClusters(vocabularySize, NUMBER_OF_CLUSTERS);
+        clusterContextCounts = ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap);
+        clusters = clusterContextCounts.getAllClusters().sorted().toArray();
+        swapScoreEvaluator = new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap);
+    }
+
+    @Benchmark
+    public double swapWordContextCounts() {
+        int phrase = nextPhrase();
+        int currCluster = phraseToClusterMap.get(phrase);
+        ContextCountsImpl countsOfPhrase = BrownClustering.mapPhraseCountsToClusterCounts(phrase, phraseToClusterMap, phraseContextCounts, SwapWordContextCounts.DUMMY_CLUSTER);
+        SwapWordContextCounts swapWordContextCounts = new SwapWordContextCounts(clusterContextCounts, countsOfPhrase, currCluster);
+        double bestScore = -Double.MAX_VALUE;
+        for (int cluster : clusters) {
+            bestScore = Math.max(bestScore, MutualInformationUtils.computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, cluster, swapWordContextCounts));
+        }
+        return bestScore;
+    }
+
+    @Benchmark
+    public double swapScoreEvaluator() {
+        swapScoreEvaluator.setPhrase(nextPhrase());
+        double bestScore = -Double.MAX_VALUE;
+        for (int cluster : clusters) {
+            bestScore = Math.max(bestScore, swapScoreEvaluator.computeScore(cluster));
+        }
+        return bestScore;
+    }
+
+    private int nextPhrase() {
+        phrase = (phrase + 1) % Math.min(vocabularySize, NUMBER_OF_SWAPPED_PHRASES);
+        return phrase;
+    }
+}
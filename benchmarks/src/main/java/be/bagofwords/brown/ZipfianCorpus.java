@@ -0,0 +1,113 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Synthetic corpus where the frequency of the word with rank r is proportional to 1/r (Zipf's law), like the words of natural text.
+ * The corpus is generated from a fixed seed, so every benchmark run sees the same corpus.
+ */
+public class ZipfianCorpus {
+
+    private static final int MIN_LINE_LENGTH = 5;
+    private static final int MAX_LINE_LENGTH = 30;
+
+    private final double[] cumulativeProbabilities;
+    private final Random random;
+
+    public ZipfianCorpus(int vocabularySize, long seed) {
+        this.cumulativeProbabilities = new double[vocabularySize];
+        double total = 0;
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            total += 1.0 / (rank + 1);
+            cumulativeProbabilities[rank] = total;
+        }
+        for (int rank = 0; rank < vocabularySize; rank++) {
+            cumulativeProbabilities[rank] /= total;
+        }
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return the rank of the next word of the corpus
+     */
+
+    public int nextWord() {
+        int ind = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+        return Math.min(ind < 0 ? -ind - 1 : ind, cumulativeProbabilities.length - 1);
+    }
+
+    public int nextLineLength() {
+        return MIN_LINE_LENGTH + random.nextInt(MAX_LINE_LENGTH - MIN_LINE_LENGTH + 1);
+    }
+
+    public static String getWord(int rank) {
+        return "w" + rank;
+    }
+
+    /**
+     * Writes a text corpus of numberOfWords words to a temporary file
+     */
+
+    public static File writeTemporaryCorpus(int vocabularySize, int numberOfWords, long seed) throws IOException {
+        File file = File.createTempFile("zipfian", ".txt");
+        file.deleteOnExit();
+        ZipfianCorpus corpus = new ZipfianCorpus(vocabularySize, seed);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            int written = 0;
+            while (written < numberOfWords) {
+                int lineLength = Math.min(corpus.nextLineLength(), numberOfWords - written);
+                for (int i = 0; i < lineLength; i++) {
+                    if (i > 0) {
+                        writer.write(' ');
+                    }
+                    writer.write(getWord(corpus.nextWord()));
+                }
+                writer.write('\n');
+                written += lineLength;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Counts the bigrams of a corpus of numberOfWords words directly, without writing the corpus to a file. The index of every phrase
+     * is the rank of its word.
+     */
+
+    public static CompactContextCounts createContextCounts(int vocabularySize, int numberOfWords, long seed) {
+        ZipfianCorpus corpus = new ZipfianCorpus(vocabularySize, seed);
+        Long2IntOpenHashMap bigramCounts = new Long2IntOpenHashMap();
+        int written = 0;
+        while (written < numberOfWords) {
+            int lineLength = Math.min(corpus.nextLineLength(), numberOfWords - written);
+            int prevWord = corpus.nextWord();
+            for (int i = 1; i < lineLength; i++) {
+                int currWord = corpus.nextWord();
+                bigramCounts.addTo(SparseCountRows.packPair(prevWord, currWord), 1);
+                prevWord = currWord;
+            }
+            written += lineLength;
+        }
+        return CompactContextCounts.fromBigramCounts(vocabularySize, bigramCounts);
+    }
+
+    /**
+     * Assigns the numberOfClusters most frequent phrases to their own cluster, and all other phrases to one of these clusters
+     */
+
+    public static Int2IntOpenHashMap assignToClusters(int numberOfPhrases, int numberOfClusters) {
+        Int2IntOpenHashMap phraseToClusterMap = ContextCountsUtils.createNewInt2IntMap(numberOfPhrases);
+        for (int phrase = 0; phrase < numberOfPhrases; phrase++) {
+            phraseToClusterMap.put(phrase, phrase % numberOfClusters);
+        }
+        return phraseToClusterMap;
+    }
+}
@@ -0,0 +1,67 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Set of clusters that is updated in place when clusters are merged or swapped. The clusters are stored in a dense array (in no particular
+ * order) together with the position of every cluster in that array, so that add(), remove() and contains() take constant time and
+ * stream() does not allocate a new collection.
+ */
+public class ActiveClusters {
+
+    private final Int2IntOpenHashMap positions;
+    private int[] clusters;
+    private int size;
+
+    public ActiveClusters(int initialCapacity) {
+        this.positions = ContextCountsUtils.createNewInt2IntMap(initialCapacity);
+        this.positions.defaultReturnValue(-1);
+        this.clusters = new int[Math.max(initialCapacity, 1)];
+        this.size = 0;
+    }
+
+    public void add(int cluster) {
+        if (!contains(cluster)) {
+            if (size == clusters.length) {
+                clusters = Arrays.copyOf(clusters, size * 2);
+            }
+            positions.put(cluster, size);
+            clusters[size++] = cluster;
+        }
+    }
+
+    public void remove(int cluster) {
+        int position = positions.remove(cluster);
+        if (position >= 0) {
+            //move the last cluster to the free position
+            int lastCluster = clusters[--size];
+            if (position != size) {
+                clusters[position] = lastCluster;
+                positions.put(lastCluster, position);
+            }
+        }
+    }
+
+    public boolean contains(int cluster) {
+        return positions.get(cluster) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int position) {
+        return clusters[position];
+    }
+
+    /**
+     * @return the clusters of this set. The stream should be consumed before the set is modified.
+     */
+
+    public IntStream stream() {
+        return Arrays.stream(clusters, 0, size);
+    }
+}
@@ -0,0 +1,124 @@
+package be.bagofwords.brown;
+
+import be.bagofwords.ui.UI;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default ClusteringListener, that writes the progress of the clustering with UI.write() on a background thread. Steps, swap iterations
+ * and pruning statistics are always written. Of the frequent events (merged phrases, swapped phrases and merged clusters) at most one
+ * message is written per minInterval milliseconds, together with the number of events since the previous message. Messages of skipped
+ * events are never created. The background thread runs until the listener is closed.
+ */
+public class AsyncLoggingListener implements ClusteringListener, AutoCloseable {
+
+    private final long minIntervalNanos;
+    private final ExecutorService writer;
+    private long lastWriteTime;
+    private int numberOfEventsSinceLastWrite;
+
+    public AsyncLoggingListener() {
+        this(1000);
+    }
+
+    public AsyncLoggingListener(long minInterval) {
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minInterval);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "clustering-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lastWriteTime = System.nanoTime() - minIntervalNanos;
+    }
+
+    @Override
+    public void stepStarted(int step) {
+        numberOfEventsSinceLastWrite = 0;
+        write("Started step " + ClusteringState.getStepName(step));
+    }
+
+    @Override
+    public void stepFinished(int step) {
+        write("Finished step " + ClusteringState.getStepName(step));
+    }
+
+    @Override
+    public void phraseMerged(int phrase, int cluster) {
+        if (isDue()) {
+            write("Merged phrase " + phrase + " with " + cluster + " (" + numberOfEventsSinceLastWrite + " phrases merged since last message)");
+        }
+    }
+
+    @Override
+    public void phraseSwapped(int iteration, int phrase, int oldCluster, int newCluster) {
+        if (isDue()) {
+            write("Iteration " + iteration + " assigned phrase " + phrase + " to cluster " + newCluster + " (was cluster " + oldCluster + ", " + numberOfEventsSinceLastWrite + " phrases swapped since last message)");
+        }
+    }
+
+    @Override
+    public void swapIterationFinished(int iteration, int numberOfPhrasesSwapped, double gain) {
+        write("Iteration " + iteration + " swapped " + numberOfPhrasesSwapped + " phrases, total gain " + gain);
+    }
+
+    @Override
+    public void candidatesPruned(int step, long numberOfCandidates, long numberOfPrunedCandidates) {
+        write("Pruned " + numberOfPrunedCandidates + " of " + numberOfCandidates + " candidate clusters");
+    }
+
+    @Override
+    public void clustersMerged(int cluster1, int cluster2, long numberOfCandidatesRemaining) {
+        if (isDue()) {
+            write("Merged cluster " + cluster1 + " with " + cluster2 + " (" + numberOfCandidatesRemaining + " candidates remaining, " + numberOfEventsSinceLastWrite + " clusters merged since last message)");
+        }
+    }
+
+    /**
+     * Waits until all messages are written
+     */
+
+    @Override
+    public void clusteringFinished() {
+        try {
+            writer.submit(() -> {
+            }).get();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exp) {
+            throw new RuntimeException("Failed to write progress messages", exp);
+        }
+    }
+
+    /**
+     * Writes the remaining messages and stops the background thread
+     */
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isDue() {
+        numberOfEventsSinceLastWrite++;
+        long now = System.nanoTime();
+        if (now - lastWriteTime >= minIntervalNanos) {
+            lastWriteTime = now;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void write(String message) {
+        numberOfEventsSinceLastWrite = 0;
+        writer.execute(() -> UI.write(message));
+    }
+}
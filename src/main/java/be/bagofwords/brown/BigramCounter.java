@@ -0,0 +1,73 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Counts the bigrams of (a part of) the corpus. Phrases that are not in the vocabulary are counted as unknownPhrase. The bigrams are
+ * either counted in a hash map, or passed to a BigramHandler.
+ */
+public class BigramCounter implements TokenHandler {
+
+    private final Vocabulary phrases; //only read, so it can be shared by counters of different threads
+    private final int unknownPhrase;
+    private final Long2IntOpenHashMap bigramCounts;
+    private final BigramHandler bigramHandler;
+    private int prevPhrase;
+
+    public BigramCounter(Vocabulary phrases, int unknownPhrase) {
+        this(phrases, unknownPhrase, null);
+    }
+
+    /**
+     * @param bigramHandler receives all bigrams. If null, the bigrams are counted in getBigramCounts().
+     */
+
+    public BigramCounter(Vocabulary phrases, int unknownPhrase, BigramHandler bigramHandler) {
+        this.phrases = phrases;
+        this.unknownPhrase = unknownPhrase;
+        this.bigramCounts = new Long2IntOpenHashMap();
+        this.bigramHandler = bigramHandler;
+        this.prevPhrase = -1;
+    }
+
+    @Override
+    public void handleToken(byte[] token, int length) {
+        int currPhrase = phrases.get(token, length);
+        if (currPhrase == -1) {
+            //infrequent phrase
+            currPhrase = unknownPhrase;
+        }
+        if (prevPhrase != -1) {
+            if (bigramHandler == null) {
+                bigramCounts.addTo(SparseCountRows.packPair(prevPhrase, currPhrase), 1);
+            } else {
+                bigramHandler.handleBigram(prevPhrase, currPhrase);
+            }
+        }
+        prevPhrase = currPhrase;
+    }
+
+    @Override
+    public void handleEndOfLine() {
+        prevPhrase = -1;
+    }
+
+    public BigramCounter merge(BigramCounter other) {
+        ObjectIterator<Long2IntMap.Entry> iterator = other.bigramCounts.long2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Long2IntMap.Entry entry = iterator.next();
+            bigramCounts.addTo(entry.getLongKey(), entry.getIntValue());
+        }
+        return this;
+    }
+
+    /**
+     * @return counts of all bigrams, with keys created by SparseCountRows.packPair(firstPhrase, secondPhrase)
+     */
+
+    public Long2IntOpenHashMap getBigramCounts() {
+        return bigramCounts;
+    }
+}
@@ -0,0 +1,9 @@
+package be.bagofwords.brown;
+
+/**
+ * Receives every occurrence of a bigram, i.e. firstPhrase directly followed by secondPhrase on the same line
+ */
+public interface BigramHandler {
+
+    void handleBigram(int firstPhrase, int secondPhrase);
+}
@@ -4,13 +4,28 @@ import be.bagofwords.ui.UI;
 import be.bagofwords.util.NumUtils;
 import be.bagofwords.util.Pair;
 import be.bagofwords.util.Utils;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import org.apache.commons.lang3.mutable.MutableDouble;
 import org.apache.commons.lang3.mutable.MutableInt;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
 
 /**
  * Created by Koen Deschacht (koendeschacht@gmail.com) on 02/12/14.
@@ -25,13 +40,41 @@ public class BrownClustering {
 
     public static final boolean DO_TESTS = false; //you probably want to enable this during development
 
-    private static final String UNKNOWN_PHRASE = "_UNKNOWN_";
+    static final String UNKNOWN_PHRASE = "_UNKNOWN_";
+    //computing a merge or swap score visits all contexts of a cluster, so a few scores are enough to pay for forking a task
+    private static final int MIN_SCORES_PER_TASK = 16;
 
     private final String inputFile;
     private final String outputFile;
     private final int minFrequencyOfPhrase;
     private final int maxNumberOfClusters;
     private boolean onlySwapMostFrequentWords;
+    private boolean useMergeLossTable = true;
+    private boolean useMemoryMappedInput = true;
+    private String encodedCorpus;
+    private long bigramMemoryBudget = 0;
+    private String bigramSpillDirectory;
+    private String phraseContextCountsFile;
+    private String checkpointFile;
+    private boolean resumeFromCheckpoint = false;
+    private long checkpointInterval = 10 * 60 * 1000;
+    private long lastCheckpointTime;
+    private long checkpointFingerprint;
+    private int swapBatchSize = 1;
+    private boolean useSwapWorklist = false;
+    private double minSwapChangeFraction = 0.01;
+    private double minSwapGainPerIteration = 0;
+    private long swapTimeBudget = 0;
+    private boolean pruneCandidates = true;
+    private int logTableSize = 0;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ClusteringListener configuredListener;
+    private ClusteringListener listener;
+    private String metricsFile;
+    private String flightRecordingFile;
+    private final ClusteringMetrics metrics = new ClusteringMetrics();
+    private final LongAdder numberOfCandidates = new LongAdder();
+    private final LongAdder numberOfPrunedCandidates = new LongAdder();
 
     public BrownClustering(String inputFile, String outputFile, int minFrequencyOfPhrase, int maxNumberOfClusters, boolean onlySwapMostFrequentWords) {
         this.inputFile = inputFile;
@@ -41,114 +84,716 @@ public class BrownClustering {
         this.onlySwapMostFrequentWords = onlySwapMostFrequentWords;
     }
 
+    /**
+     * If true, clusters are merged hierarchically with a dense table of merge losses that is updated incrementally after every merge
+     * (see MergeLossTable). If false, the scores of all merge candidates are (partially) recomputed after every merge. In that case no
+     * checkpoints are written while the clusters are merged: the merge candidates are not stored in a checkpoint, and recomputing them
+     * after a resume would not give the same partially updated scores. A resumed clustering then restarts the hierarchical merging.
+     */
+
+    public void setUseMergeLossTable(boolean useMergeLossTable) {
+        this.useMergeLossTable = useMergeLossTable;
+    }
+
+    /**
+     * If true, the input file is memory mapped and split in phrases by CorpusTokenizer. If false, the input file is read line by line with a
+     * BufferedReader.
+     */
+
+    public void setUseMemoryMappedInput(boolean useMemoryMappedInput) {
+        this.useMemoryMappedInput = useMemoryMappedInput;
+    }
+
+    /**
+     * Read the phrases from an encoded corpus, created with EncodedCorpus.encode(), instead of from inputFile. This avoids tokenizing the
+     * same corpus again when the clustering is run with different parameters.
+     */
+
+    public void setEncodedCorpus(String encodedCorpus) {
+        this.encodedCorpus = encodedCorpus;
+    }
+
+    /**
+     * If larger than 0, bigrams are counted with ExternalBigramCounter, which uses at most bigramMemoryBudget bytes to buffer and sort
+     * bigrams before writing them to temporary files. Use this when the bigram counts of the corpus do not fit in memory as hash maps. Ignored when the
+     * memory mapped input is disabled.
+     */
+
+    public void setBigramMemoryBudget(long bigramMemoryBudget) {
+        this.bigramMemoryBudget = bigramMemoryBudget;
+    }
+
+    /**
+     * Directory of the temporary files of ExternalBigramCounter (see setBigramMemoryBudget()). If not set, java.io.tmpdir is used, which is
+     * often a small or memory backed file system.
+     */
+
+    public void setBigramSpillDirectory(String bigramSpillDirectory) {
+        this.bigramSpillDirectory = bigramSpillDirectory;
+    }
+
+    /**
+     * If set, the context counts of all phrases are stored in phraseContextCountsFile and memory mapped instead of being kept on the heap.
+     * The file is reused by later runs with the same phrases (and phrase frequencies), so these runs skip counting the bigrams and share
+     * the counts through the page cache.
+     */
+
+    public void setPhraseContextCountsFile(String phraseContextCountsFile) {
+        this.phraseContextCountsFile = phraseContextCountsFile;
+    }
+
+    /**
+     * If larger than 1, phrases are swapped in batches of swapBatchSize phrases: the best cluster of every phrase of a batch is computed
+     * concurrently, after which the improving moves are applied one by one. This uses many more cores than swapping one phrase at a time,
+     * and gives the same result for any number of threads. If 1 (the default), the best cluster of every phrase is computed and applied
+     * before the next phrase is considered.
+     */
+
+    public void setSwapBatchSize(int swapBatchSize) {
+        this.swapBatchSize = swapBatchSize;
+    }
+
+    /**
+     * If true, an iteration of swapping phrases only evaluates the phrases whose own cluster or the clusters of whose neighbouring phrases
+     * were changed since they were last evaluated (see SwapWorklist). If false, every iteration evaluates all phrases. The worklist is
+     * stored in the checkpoints, so a resumed clustering evaluates the same phrases as an uninterrupted one.
+     */
+
+    public void setUseSwapWorklist(boolean useSwapWorklist) {
+        this.useSwapWorklist = useSwapWorklist;
+    }
+
+    /**
+     * Swapping phrases stops after an iteration that changed less than this fraction of the phrases (default 0.01)
+     */
+
+    public void setMinSwapChangeFraction(double minSwapChangeFraction) {
+        this.minSwapChangeFraction = minSwapChangeFraction;
+    }
+
+    /**
+     * Swapping phrases stops after an iteration where the scores of the swapped phrases increased less than minSwapGainPerIteration in
+     * total (default 0, i.e. this criterion is not used)
+     */
+
+    public void setMinSwapGainPerIteration(double minSwapGainPerIteration) {
+        this.minSwapGainPerIteration = minSwapGainPerIteration;
+    }
+
+    /**
+     * If larger than 0, swapping phrases stops after swapTimeBudget milliseconds, even in the middle of an iteration. The time spent
+     * swapping is stored in the checkpoints, so a resumed clustering only uses the remainder of the budget. Since the budget is measured in
+     * wall-clock time, a clustering with a budget does not give the same result in every run.
+     */
+
+    public void setSwapTimeBudget(long swapTimeBudget) {
+        this.swapTimeBudget = swapTimeBudget;
+    }
+
+    /**
+     * If true (the default), the search for the best cluster of a phrase first scores the clusters that occur next to the phrase. The
+     * other clusters are only scored if an upper bound of their score, computed from the contexts of the phrase only, can beat the best
+     * score found so far. The result is identical to scoring all clusters. The number of pruned clusters is logged after every step.
+     */
+
+    public void setPruneCandidates(boolean pruneCandidates) {
+        this.pruneCandidates = pruneCandidates;
+    }
+
+    /**
+     * If larger than 0, the logarithms of all counts and totals smaller than logTableSize are precomputed, and the scores are computed with
+     * table lookups instead of calls to Math.log() (see ContextCountsImpl.setLogTable()). A table of 1 << 20 values takes 8MB.
+     * The scores differ from the default scores by rounding errors only, but this can change the result when two clusters have (almost)
+     * the same score. Default 0, i.e. no table.
+     */
+
+    public void setLogTableSize(int logTableSize) {
+        this.logTableSize = logTableSize;
+    }
+
+    /**
+     * Number of threads of the ForkJoinPool that runs all (parallel) work of this clustering. Every run() uses its own pool, so
+     * clusterings and other work in the same JVM do not compete for the workers of the common pool. Default the number of processors.
+     */
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Receives the progress of the clustering. If no listener is set, every run() creates an AsyncLoggingListener that writes rate-limited
+     * progress messages on a background thread, and stops it when the clustering ends. Use ClusteringListener.NO_OP to skip all progress
+     * reporting.
+     */
+
+    public void setListener(ClusteringListener listener) {
+        this.configuredListener = listener;
+    }
+
+    /**
+     * If set, the metrics of the clustering (see getMetrics()) are written as JSON to metricsFile when the clustering is finished
+     */
+
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    /**
+     * If set, a flight recording of the clustering is written to flightRecordingFile. The recording contains the events of
+     * ClusteringEvents together with garbage collections, parked threads and CPU samples, see ClusteringEvents.FLIGHT_RECORDER_SETTINGS.
+     * The same settings can be used to record a clustering with jcmd or -XX:StartFlightRecording. Recording needs a JVM with a flight
+     * recorder (Java 11, or Java 8u262 and later). On other JVMs the clustering runs without events and run() fails if this file is set.
+     */
+
+    public void setFlightRecordingFile(String flightRecordingFile) {
+        this.flightRecordingFile = flightRecordingFile;
+    }
+
+    /**
+     * Phase timers, counters and memory statistics of the clustering. While the clustering runs, these are also registered over JMX
+     * under ClusteringMetrics.OBJECT_NAME, with the output file as name.
+     */
+
+    public ClusteringMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * If set, the state of the clustering is written to checkpointFile after every step of the clustering, and periodically during the
+     * swapping of phrases and the hierarchical merging of clusters with the merge loss table (see setCheckpointInterval()). During the
+     * hierarchical merging the checkpoint contains the merge loss table, which takes 12 bytes per pair of clusters. While swapping phrases
+     * with a worklist (see setUseSwapWorklist()), the checkpoint contains the worklist, which takes 8 bytes per phrase.
+     */
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * If true, the clustering continues from the state stored in the checkpoint file, if that file exists and was written by a clustering
+     * of the same phrases with the same parameters.
+     */
+
+    public void setResumeFromCheckpoint(boolean resumeFromCheckpoint) {
+        this.resumeFromCheckpoint = resumeFromCheckpoint;
+    }
+
+    /**
+     * Minimum number of milliseconds between two checkpoints written within a step of the clustering
+     */
+
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
     /**
      * Read phrases from inputFile, run cluster algorithm and write cluster of every phrase to outputFile
      */
 
     public void run() throws IOException {
-        Pair<Map<Integer, String>, Int2IntOpenHashMap> readPhrases = readPhrases();
-        Map<Integer, String> phraseMap = readPhrases.getFirst();
-        Int2IntOpenHashMap phraseFrequencies = readPhrases.getSecond();
-        UI.write("Read " + phraseMap.size() + " phrases.");
-        ContextCountsImpl contextCounts = extractContextCounts(phraseMap);
-        doClustering(phraseMap, contextCounts, phraseFrequencies);
+        AsyncLoggingListener defaultListener = configuredListener == null ? new AsyncLoggingListener() : null;
+        listener = defaultListener != null ? defaultListener : configuredListener;
+        ForkJoinPool pool = ParallelUtils.createPool("brown-clustering", parallelism);
+        try {
+            //parallel streams and tasks started from a worker thread of pool are run in pool as well
+            pool.submit(() -> {
+                runInPool();
+                return null;
+            }).get();
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while clustering " + inputFile, exp);
+        } catch (ExecutionException exp) {
+            Throwable cause = exp.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        } finally {
+            pool.shutdownNow();
+            try {
+                listener.clusteringFinished();
+            } finally {
+                if (defaultListener != null) {
+                    defaultListener.close();
+                }
+            }
+        }
     }
 
-    private void doClustering(Map<Integer, String> phraseMap, ContextCountsImpl phraseContextCounts, Int2IntOpenHashMap phraseFrequencies) throws IOException {
-        /**
-         * STEP 1: create for every unique phrase a unique cluster
-         */
-        Int2IntOpenHashMap phraseToClusterMap = initializeClusters(phraseMap.size());
-        ContextCountsImpl clusterContextCounts = phraseContextCounts.clone(); //initially these counts are identical
-        if (DO_TESTS) {
+    private void runInPool() throws IOException {
+        Closeable recording = flightRecordingFile != null ? ClusteringRecorder.startRecording(flightRecordingFile) : null;
+        try {
+            runWithMetrics();
+        } finally {
+            if (recording != null) {
+                recording.close();
+            }
+        }
+    }
+
+    private void runWithMetrics() throws IOException {
+        metrics.start();
+        metrics.register(outputFile);
+        try {
+            Pair<Map<Integer, String>, Int2IntOpenHashMap> readPhrases;
+            try (ClusteringMetrics.Phase phase = metrics.startPhase("countPhrases")) {
+                readPhrases = readPhrases();
+            }
+            Map<Integer, String> phraseMap = readPhrases.getFirst();
+            Int2IntOpenHashMap phraseFrequencies = readPhrases.getSecond();
+            UI.write("Read " + phraseMap.size() + " phrases.");
+            CompactContextCounts contextCounts;
+            try (ClusteringMetrics.Phase phase = metrics.startPhase("extractContextCounts")) {
+                if (phraseContextCountsFile != null) {
+                    contextCounts = readContextCounts(phraseMap, phraseFrequencies);
+                } else {
+                    contextCounts = extractContextCounts(phraseMap);
+                }
+            }
+            doClustering(phraseMap, contextCounts, phraseFrequencies);
+        } finally {
+            metrics.finish();
+            metrics.unregister();
+            if (metricsFile != null) {
+                metrics.writeJson(metricsFile);
+            }
+        }
+    }
+
+    private void doClustering(Map<Integer, String> phraseMap, CompactContextCounts phraseContextCounts, Int2IntOpenHashMap phraseFrequencies) throws IOException {
+        checkpointFingerprint = computeCheckpointFingerprint(phraseMap, phraseFrequencies);
+        lastCheckpointTime = System.currentTimeMillis();
+        ClusteringState state = null;
+        if (checkpointFile != null && resumeFromCheckpoint) {
+            state = ClusteringState.read(checkpointFile, checkpointFingerprint);
+            if (state != null) {
+                UI.write("Resuming from checkpoint " + checkpointFile + " at step " + state.getStep());
+            }
+        }
+        if (state == null) {
+            /**
+             * STEP 1: create for every unique phrase a unique cluster
+             */
+            Int2IntOpenHashMap phraseToClusterMap = initializeClusters(phraseMap.size());
+            ContextCountsImpl clusterContextCounts = phraseContextCounts.toContextCountsImpl(); //initially these counts are identical
+            state = new ClusteringState(phraseToClusterMap, clusterContextCounts);
+        }
+        Int2IntOpenHashMap phraseToClusterMap = state.getPhraseToClusterMap();
+        ContextCountsImpl clusterContextCounts = state.getClusterContextCounts();
+        //every clustering has its own table, so clusterings in the same JVM can use different settings
+        LogTable logTable = logTableSize > 0 ? new LogTable(logTableSize) : null;
+        clusterContextCounts.setLogTable(logTable);
+        if (state.getMergeLossTable() != null) {
+            state.getMergeLossTable().setLogTable(logTable);
+        }
+        clusterContextCounts.setClonedMapsCounter(metrics.getClonedMapsCounter());
+        if (DO_TESTS && state.getStep() < ClusteringState.MERGE_ALL_CLUSTERS) {
             ContextCountsUtils.checkCounts(clusterContextCounts, phraseToClusterMap, phraseContextCounts);
         }
         /**
          * STEP 2: merge clusters of infrequent phrases with clusters of frequent phrases, and swap words among clusters
          */
-        if (onlySwapMostFrequentWords) {
-            int numOfFrequentPhrases = Math.min(phraseMap.size(), maxNumberOfClusters * 10);
-            mergeInfrequentPhrasesWithFrequentPhraseClusters(maxNumberOfClusters, numOfFrequentPhrases, phraseToClusterMap, clusterContextCounts);
-            swapPhrases(0, numOfFrequentPhrases, phraseToClusterMap, clusterContextCounts, phraseContextCounts);
-            mergeInfrequentPhrasesWithFrequentPhraseClusters(numOfFrequentPhrases, phraseMap.size(), phraseToClusterMap, clusterContextCounts);
-        } else {
-            mergeInfrequentPhrasesWithFrequentPhraseClusters(maxNumberOfClusters, phraseMap.size(), phraseToClusterMap, clusterContextCounts);
-            swapPhrases(0, phraseMap.size(), phraseToClusterMap, clusterContextCounts, phraseContextCounts);
+        int numOfSwappedPhrases = onlySwapMostFrequentWords ? Math.min(phraseMap.size(), maxNumberOfClusters * 10) : phraseMap.size();
+        if (state.getStep() == ClusteringState.MERGE_INFREQUENT_PHRASES) {
+            listener.stepStarted(ClusteringState.MERGE_INFREQUENT_PHRASES);
+            try (ClusteringMetrics.Phase phase = metrics.startPhase("mergeInfrequentPhrases")) {
+                mergeInfrequentPhrasesWithFrequentPhraseClusters(maxNumberOfClusters, numOfSwappedPhrases, state);
+            }
+            finishStep(state, ClusteringState.SWAP_PHRASES);
         }
-        if (DO_TESTS) {
-            ContextCountsUtils.checkCounts(clusterContextCounts, phraseToClusterMap, phraseContextCounts);
+        if (state.getStep() == ClusteringState.SWAP_PHRASES) {
+            listener.stepStarted(ClusteringState.SWAP_PHRASES);
+            swapPhrases(0, numOfSwappedPhrases, state, phraseContextCounts);
+            finishStep(state, ClusteringState.MERGE_REMAINING_INFREQUENT_PHRASES);
+        }
+        if (state.getStep() == ClusteringState.MERGE_REMAINING_INFREQUENT_PHRASES) {
+            listener.stepStarted(ClusteringState.MERGE_REMAINING_INFREQUENT_PHRASES);
+            try (ClusteringMetrics.Phase phase = metrics.startPhase("mergeRemainingInfrequentPhrases")) {
+                mergeInfrequentPhrasesWithFrequentPhraseClusters(numOfSwappedPhrases, phraseMap.size(), state);
+            }
+            if (DO_TESTS) {
+                ContextCountsUtils.checkCounts(clusterContextCounts, phraseToClusterMap, phraseContextCounts);
+            }
+            finishStep(state, ClusteringState.MERGE_ALL_CLUSTERS);
         }
         /**
          * STEP 3: merge clusters hierarchically
          */
+        listener.stepStarted(ClusteringState.MERGE_ALL_CLUSTERS);
         Map<Integer, ClusterHistoryNode> historyNodes = initializeHistoryNodes(phraseToClusterMap);
-        mergeAllClusters(historyNodes, clusterContextCounts);
+        try (ClusteringMetrics.Phase phase = metrics.startPhase("mergeAllClusters")) {
+            mergeAllClusters(historyNodes, state);
+        }
+        listener.stepFinished(ClusteringState.MERGE_ALL_CLUSTERS);
         writeOutput(phraseMap, phraseToClusterMap, historyNodes, phraseFrequencies);
     }
 
+    /**
+     * Finishes the current step and starts nextStep
+     */
+
+    private void finishStep(ClusteringState state, int nextStep) throws IOException {
+        listener.stepFinished(state.getStep());
+        startStep(state, nextStep);
+    }
+
+    private void startStep(ClusteringState state, int step) throws IOException {
+        state.startStep(step);
+        writeCheckpoint(state);
+    }
+
+    private void writeCheckpoint(ClusteringState state) throws IOException {
+        if (checkpointFile != null) {
+            state.writeTo(checkpointFile, checkpointFingerprint);
+            lastCheckpointTime = System.currentTimeMillis();
+            UI.write("Wrote checkpoint to " + checkpointFile);
+        }
+    }
+
+    private void writeCheckpointIfDue(ClusteringState state) {
+        if (checkpointFile != null && System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval) {
+            try {
+                writeCheckpoint(state);
+            } catch (IOException exp) {
+                throw new UncheckedIOException(exp);
+            }
+        }
+    }
+
+    /**
+     * A checkpoint can only be resumed by a clustering of the same phrases with the same parameters
+     */
+
+    private long computeCheckpointFingerprint(Map<Integer, String> phraseMap, Int2IntOpenHashMap phraseFrequencies) {
+        long fingerprint = computeFingerprint(phraseMap, phraseFrequencies);
+        fingerprint = fingerprint * 31 + maxNumberOfClusters;
+        fingerprint = fingerprint * 31 + (onlySwapMostFrequentWords ? 1 : 0);
+        fingerprint = fingerprint * 31 + swapBatchSize;
+        fingerprint = fingerprint * 31 + (useSwapWorklist ? 1 : 0);
+        fingerprint = fingerprint * 31 + (pruneCandidates ? 1 : 0);
+        fingerprint = fingerprint * 31 + Double.doubleToLongBits(minSwapChangeFraction);
+        fingerprint = fingerprint * 31 + Double.doubleToLongBits(minSwapGainPerIteration);
+        fingerprint = fingerprint * 31 + swapTimeBudget;
+        fingerprint = fingerprint * 31 + (useMergeLossTable ? 1 : 0);
+        fingerprint = fingerprint * 31 + logTableSize;
+        return fingerprint;
+    }
+
     /**
      * see paragraph "We know of ..." on page 472 of [Brown et al.].
      */
 
-    private void mergeInfrequentPhrasesWithFrequentPhraseClusters(int startPhrase, int endPhrase, Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts) {
-        for (int infrequentPhrase = startPhrase; infrequentPhrase < endPhrase; infrequentPhrase++) {
+    private void mergeInfrequentPhrasesWithFrequentPhraseClusters(int startPhrase, int endPhrase, ClusteringState state) {
+        ContextCountsImpl clusterContextCounts = state.getClusterContextCounts();
+        for (int infrequentPhrase = Math.max(startPhrase, state.getPhrase()); infrequentPhrase < endPhrase; infrequentPhrase++) {
             int cluster = findBestClusterToMerge(infrequentPhrase, 0, maxNumberOfClusters, clusterContextCounts).getFirst();
-            UI.write("Will merge phrase " + infrequentPhrase + " with " + cluster);
             clusterContextCounts.mergeClusters(infrequentPhrase, cluster);
-            phraseToClusterMap.put(infrequentPhrase, cluster);
+            state.getPhraseToClusterMap().put(infrequentPhrase, cluster);
+            metrics.incrementMerges();
+            listener.phraseMerged(infrequentPhrase, cluster);
+            state.setPhrase(infrequentPhrase + 1);
+            writeCheckpointIfDue(state);
         }
+        reportPrunedCandidates(state.getStep());
     }
 
     /**
      * see paragraph "We know of ..." on page 472 of [Brown et al.].
      */
 
-    private void swapPhrases(int phraseStart, int phraseEnd, Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts, ContextCountsImpl phraseContextCounts) {
+    private void swapPhrases(int phraseStart, int phraseEnd, ClusteringState state, CompactContextCounts phraseContextCounts) {
+        Int2IntOpenHashMap phraseToClusterMap = state.getPhraseToClusterMap();
+        ContextCountsImpl clusterContextCounts = state.getClusterContextCounts();
         int numOfPhrases = phraseEnd - phraseStart;
-        int numOfPhrasesChangedInLastIteration = numOfPhrases;
-        int iteration = 0;
-        //continue swapping phrases until less then 1% of the phrases has changed in the last iteration
-        while (numOfPhrasesChangedInLastIteration * 100 > numOfPhrases) {
-            numOfPhrasesChangedInLastIteration = 0;
-            for (int phrase = phraseStart; phrase < phraseEnd; phrase++) {
-                int currCluster = phraseToClusterMap.get(phrase);
-                ContextCountsImpl contextCountsForPhrase = mapPhraseCountsToClusterCounts(phrase, phraseToClusterMap, phraseContextCounts, SwapWordContextCounts.DUMMY_CLUSTER);
-                SwapWordContextCounts swapWordContextCounts = new SwapWordContextCounts(clusterContextCounts, contextCountsForPhrase, currCluster);
-                Pair<Integer, Double> bestClusterScore = findBestClusterToMerge(SwapWordContextCounts.DUMMY_CLUSTER, 0, maxNumberOfClusters, swapWordContextCounts);
-                double oldScore = computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, currCluster, swapWordContextCounts);
-                if (bestClusterScore.getFirst() != currCluster && bestClusterScore.getSecond() > oldScore + 1e-10) {
-                    int newCluster = bestClusterScore.getFirst();
-                    UI.write("Iteration " + iteration + " assigning phrase " + phrase + " to cluster " + newCluster + " (was cluster " + currCluster + ")");
-                    phraseToClusterMap.put(phrase, newCluster);
-                    clusterContextCounts.removeCounts(contextCountsForPhrase.mapCluster(SwapWordContextCounts.DUMMY_CLUSTER, currCluster));
-                    clusterContextCounts.addCounts(contextCountsForPhrase.mapCluster(SwapWordContextCounts.DUMMY_CLUSTER, newCluster));
-                    if (DO_TESTS) {
-                        ContextCountsUtils.checkCounts(clusterContextCounts, phraseToClusterMap, phraseContextCounts);
-                        checkSwapScores(phraseToClusterMap, clusterContextCounts, phraseContextCounts, phrase, currCluster, bestClusterScore, oldScore, newCluster);
+        SwapScoreEvaluator swapScoreEvaluator = new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap);
+        //every thread that scores phrases of a batch needs its own scratch buffers
+        ThreadLocal<SwapScoreEvaluator> batchEvaluators = ThreadLocal.withInitial(() -> new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap));
+        boolean[] changedClusters = new boolean[phraseContextCounts.getNumberOfPhrases()];
+        //a resumed clustering continues with the worklist and the swap time of its checkpoint
+        SwapWorklist worklist = state.getSwapWorklist();
+        if (worklist != null) {
+            worklist.setPhraseContextCounts(phraseContextCounts);
+        } else if (useSwapWorklist) {
+            worklist = new SwapWorklist(phraseContextCounts, phraseToClusterMap);
+            state.setSwapWorklist(worklist);
+        }
+        long startTime = System.currentTimeMillis() - state.getSwapTime();
+        boolean finished = false;
+        while (!finished) {
+            try (ClusteringMetrics.Phase iterationPhase = metrics.startPhase("swapIteration" + state.getIteration())) {
+                int phrase = Math.max(phraseStart, state.getPhrase());
+                while (phrase < phraseEnd && !finished) {
+                    if (swapBatchSize > 1) {
+                        int batchEnd = Math.min(phraseEnd, phrase + swapBatchSize);
+                        swapPhraseBatch(phrase, batchEnd, state, phraseContextCounts, swapScoreEvaluator, batchEvaluators, changedClusters, worklist);
+                        phrase = batchEnd;
+                    } else {
+                        int currCluster = phraseToClusterMap.get(phrase);
+                        if (worklist == null || worklist.needsEvaluation(phrase)) {
+                            swapScoreEvaluator.setPhrase(phrase);
+                            Pair<Integer, Double> bestClusterScore = findBestClusterToSwap(swapScoreEvaluator, clusterContextCounts);
+                            if (worklist != null) {
+                                worklist.markEvaluated(phrase);
+                            }
+                            if (trySwap(phrase, bestClusterScore, swapScoreEvaluator, state, phraseContextCounts) && worklist != null) {
+                                worklist.markMoved(phrase, currCluster, bestClusterScore.getFirst());
+                            }
+                        }
+                        phrase++;
+                    }
+                    state.setPhrase(phrase);
+                    state.setSwapTime(System.currentTimeMillis() - startTime);
+                    writeCheckpointIfDue(state);
+                    finished = swapTimeBudget > 0 && state.getSwapTime() > swapTimeBudget;
+                }
+            }
+            listener.swapIterationFinished(state.getIteration(), state.getNumberOfPhrasesChanged(), state.getSwapGain());
+            reportPrunedCandidates(state.getStep());
+            //continue swapping phrases until less then minSwapChangeFraction of the phrases has changed in the last iteration
+            finished |= numOfPhrases == 0 || state.getNumberOfPhrasesChanged() / (double) numOfPhrases <= minSwapChangeFraction;
+            finished |= state.getSwapGain() < minSwapGainPerIteration;
+            state.startNextIteration();
+        }
+    }
+
+    /**
+     * Finds the best cluster of all phrases of the batch concurrently. Since the cluster counts are not modified while scoring, every phrase
+     * is scored against the same snapshot of the counts. The improving moves are then applied in the order of the phrases. A move whose
+     * current or best cluster was changed by an earlier move of the batch is scored again against all clusters, other moves only check
+     * that they still improve the score. Phrases are scored on a single thread with ties resolved by the cluster index, so the result does
+     * not depend on the number of threads.
+     */
+
+    private void swapPhraseBatch(int batchStart, int batchEnd, ClusteringState state, CompactContextCounts phraseContextCounts, SwapScoreEvaluator swapScoreEvaluator, ThreadLocal<SwapScoreEvaluator> batchEvaluators, boolean[] changedClusters, SwapWorklist worklist) {
+        ContextCountsImpl clusterContextCounts = state.getClusterContextCounts();
+        int[] candidateClusters = getSwapCandidates(clusterContextCounts);
+        int[] bestClusters = new int[batchEnd - batchStart];
+        ParallelUtils.forEach(batchStart, batchEnd, 1, phrase -> {
+            if (worklist != null && !worklist.needsEvaluation(phrase)) {
+                bestClusters[phrase - batchStart] = -1;
+            } else {
+                SwapScoreEvaluator evaluator = batchEvaluators.get();
+                evaluator.setPhrase(phrase);
+                bestClusters[phrase - batchStart] = findBestClusterSequentially(candidateClusters, evaluator).getFirst();
+                if (worklist != null) {
+                    worklist.markEvaluated(phrase);
+                }
+            }
+        });
+        IntArrayList clustersToReset = new IntArrayList();
+        for (int phrase = batchStart; phrase < batchEnd; phrase++) {
+            int bestCluster = bestClusters[phrase - batchStart];
+            swapScoreEvaluator.setPhrase(phrase);
+            int currCluster = swapScoreEvaluator.getCurrCluster();
+            if (bestCluster == -1 || bestCluster == currCluster) {
+                continue;
+            }
+            Pair<Integer, Double> bestClusterScore;
+            if (changedClusters[currCluster] || changedClusters[bestCluster]) {
+                bestClusterScore = findBestClusterSequentially(getSwapCandidates(clusterContextCounts), swapScoreEvaluator);
+            } else {
+                bestClusterScore = new Pair<>(bestCluster, swapScoreEvaluator.computeScore(bestCluster));
+            }
+            if (trySwap(phrase, bestClusterScore, swapScoreEvaluator, state, phraseContextCounts)) {
+                int newCluster = bestClusterScore.getFirst();
+                if (worklist != null) {
+                    worklist.markMoved(phrase, currCluster, newCluster);
+                }
+                changedClusters[currCluster] = true;
+                changedClusters[newCluster] = true;
+                clustersToReset.add(currCluster);
+                clustersToReset.add(newCluster);
+            }
+        }
+        for (int i = 0; i < clustersToReset.size(); i++) {
+            changedClusters[clustersToReset.getInt(i)] = false;
+        }
+    }
+
+    private int[] getSwapCandidates(ContextCountsImpl clusterContextCounts) {
+        return clusterContextCounts.getAllClusters().filter(cluster -> cluster < maxNumberOfClusters).sorted().toArray();
+    }
+
+    /**
+     * Finds the best cluster of the phrase set in swapScoreEvaluator, scoring the candidate clusters in parallel
+     */
+
+    Pair<Integer, Double> findBestClusterToSwap(SwapScoreEvaluator swapScoreEvaluator, ContextCountsImpl clusterContextCounts) {
+        if (pruneCandidates) {
+            return findBestCluster(SwapWordContextCounts.DUMMY_CLUSTER, 0, maxNumberOfClusters, clusterContextCounts.getAllClusters(), swapScoreEvaluator::isAdjacent, swapScoreEvaluator::computeScore, swapScoreEvaluator::computeScoreUpperBound);
+        } else {
+            return findBestCluster(SwapWordContextCounts.DUMMY_CLUSTER, 0, maxNumberOfClusters, clusterContextCounts.getAllClusters(), swapScoreEvaluator::computeScore);
+        }
+    }
+
+    /**
+     * @param sortedClusters candidate clusters, sorted by cluster index so ties are always resolved in favour of the smallest cluster
+     */
+
+    Pair<Integer, Double> findBestClusterSequentially(int[] sortedClusters, SwapScoreEvaluator swapScoreEvaluator) {
+        Object event = ClusteringRecorder.beginFindBestCluster();
+        double bestScore = -Double.MAX_VALUE;
+        int bestCluster = -1;
+        for (int cluster : sortedClusters) {
+            if (!pruneCandidates || swapScoreEvaluator.isAdjacent(cluster)) {
+                double score = swapScoreEvaluator.computeScore(cluster);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestCluster = cluster;
+                }
+            }
+        }
+        if (pruneCandidates) {
+            //a pruned cluster has a score strictly below bestScore, so it could never have won a tie
+            int numberOfPruned = 0;
+            for (int cluster : sortedClusters) {
+                if (!swapScoreEvaluator.isAdjacent(cluster)) {
+                    double upperBound = swapScoreEvaluator.computeScoreUpperBound(cluster);
+                    if (upperBound < bestScore) {
+                        numberOfPruned++;
+                        if (DO_TESTS) {
+                            checkUpperBound(cluster, swapScoreEvaluator.computeScore(cluster), upperBound);
+                        }
+                    } else {
+                        double score = swapScoreEvaluator.computeScore(cluster);
+                        if (score > bestScore || (score == bestScore && cluster < bestCluster)) {
+                            bestScore = score;
+                            bestCluster = cluster;
+                        }
                     }
-                    numOfPhrasesChangedInLastIteration++;
                 }
             }
-            iteration++;
+            numberOfPrunedCandidates.add(numberOfPruned);
         }
+        numberOfCandidates.add(sortedClusters.length);
+        return endFindBestCluster(event, SwapWordContextCounts.DUMMY_CLUSTER, sortedClusters.length, new Pair<>(bestCluster, bestScore));
+    }
+
+    /**
+     * Moves phrase to the best cluster if this improves the score of its current cluster. The phrase should be set in swapScoreEvaluator.
+     *
+     * @return true if the phrase was moved
+     */
+
+    private boolean trySwap(int phrase, Pair<Integer, Double> bestClusterScore, SwapScoreEvaluator swapScoreEvaluator, ClusteringState state, CompactContextCounts phraseContextCounts) {
+        int currCluster = swapScoreEvaluator.getCurrCluster();
+        double oldScore = swapScoreEvaluator.computeScore(currCluster);
+        if (bestClusterScore.getFirst() != currCluster && bestClusterScore.getSecond() > oldScore + 1e-10) {
+            int newCluster = bestClusterScore.getFirst();
+            Object event = ClusteringRecorder.beginPhraseSwap();
+            swapScoreEvaluator.applySwap(newCluster);
+            ClusteringRecorder.endPhraseSwap(event, state.getIteration(), phrase, currCluster, newCluster, bestClusterScore.getSecond() - oldScore);
+            metrics.incrementSwaps();
+            listener.phraseSwapped(state.getIteration(), phrase, currCluster, newCluster);
+            if (DO_TESTS) {
+                ContextCountsUtils.checkCounts(state.getClusterContextCounts(), state.getPhraseToClusterMap(), phraseContextCounts);
+                checkSwapScores(state.getPhraseToClusterMap(), state.getClusterContextCounts(), phraseContextCounts, phrase, currCluster, bestClusterScore, oldScore, newCluster);
+            }
+            state.incrementNumberOfPhrasesChanged();
+            state.addSwapGain(bestClusterScore.getSecond() - oldScore);
+            return true;
+        }
+        return false;
     }
 
     /**
      * see paragraph "Although we have... " on page 473 of [Brown et al.]
      */
 
-    private void mergeAllClusters(Map<Integer, ClusterHistoryNode> nodes, ContextCountsImpl contextCounts) {
+    private void mergeAllClusters(Map<Integer, ClusterHistoryNode> nodes, ClusteringState state) {
         nodes = new HashMap<>(nodes);
-        List<MergeCandidate> mergeCandidates = computeAllScores(contextCounts);
-        while (!mergeCandidates.isEmpty()) {
-            MergeCandidate next = mergeCandidates.remove(mergeCandidates.size() - 1);
+        //replay the merges of a resumed clustering
+        for (int merge = 0; merge < state.getNumberOfMerges(); merge++) {
+            updateClusterNodes(nodes, state.getSmallCluster(merge), state.getLargeCluster(merge));
+        }
+        if (useMergeLossTable) {
+            mergeAllClustersWithLossTable(nodes, state);
+        } else {
+            mergeAllClustersWithCandidates(nodes, state);
+        }
+    }
+
+    private void mergeAllClustersWithLossTable(Map<Integer, ClusterHistoryNode> nodes, ClusteringState state) {
+        ContextCountsImpl contextCounts = state.getClusterContextCounts();
+        //a resumed clustering continues with the table of its checkpoint, a new table would have slightly different scores
+        MergeLossTable mergeLossTable = state.getMergeLossTable();
+        Object scoringEvent;
+        if (mergeLossTable == null) {
+            scoringEvent = ClusteringRecorder.beginScoringBatch();
+            try (ClusteringMetrics.Phase phase = metrics.startPhase("initialScoring")) {
+                mergeLossTable = new MergeLossTable(contextCounts);
+            }
+            endScoringBatch(scoringEvent, -1, countPairs(mergeLossTable.getNumberOfClusters()));
+            state.setMergeLossTable(mergeLossTable);
+        }
+        if (DO_TESTS) {
+            checkMergeLossTable(mergeLossTable, contextCounts);
+        }
+        while (mergeLossTable.getNumberOfClusters() > 1) {
+            MergeCandidate next = mergeLossTable.findBestMerge();
             int cluster1 = next.getCluster1();
             int cluster2 = next.getCluster2();
-            UI.write("Will merge cluster " + cluster1 + " with " + cluster2 + " (" + mergeCandidates.size() + " candidates remaining)");
+            scoringEvent = ClusteringRecorder.beginScoringBatch();
+            mergeLossTable.mergeClusters(cluster1, cluster2);
+            endScoringBatch(scoringEvent, cluster2, mergeLossTable.getNumberOfClusters() - 1); //scores of the merged cluster are updated
+            metrics.incrementMerges();
+            listener.clustersMerged(cluster1, cluster2, mergeLossTable.getNumberOfMergeCandidates());
             contextCounts.mergeClusters(cluster1, cluster2);
             updateClusterNodes(nodes, cluster1, cluster2);
-            removeMergeCandidates(mergeCandidates, cluster1);
+            state.addMerge(cluster1, cluster2);
+            writeCheckpointIfDue(state);
+            if (DO_TESTS) {
+                checkMergeLossTable(mergeLossTable, contextCounts);
+            }
+        }
+    }
+
+    private void mergeAllClustersWithCandidates(Map<Integer, ClusterHistoryNode> nodes, ClusteringState state) {
+        ContextCountsImpl contextCounts = state.getClusterContextCounts();
+        MergeCandidateQueue mergeCandidates;
+        Object scoringEvent = ClusteringRecorder.beginScoringBatch();
+        try (ClusteringMetrics.Phase phase = metrics.startPhase("initialScoring")) {
+            mergeCandidates = computeAllScores(contextCounts);
+        }
+        endScoringBatch(scoringEvent, -1, countPairs(mergeCandidates.getNumberOfClusters()));
+        while (!mergeCandidates.isEmpty()) {
+            int next = mergeCandidates.poll();
+            int cluster1 = mergeCandidates.getCluster1(next);
+            int cluster2 = mergeCandidates.getCluster2(next);
+            metrics.incrementMerges();
+            listener.clustersMerged(cluster1, cluster2, mergeCandidates.size());
+            contextCounts.mergeClusters(cluster1, cluster2);
+            updateClusterNodes(nodes, cluster1, cluster2);
+            mergeCandidates.removeCandidates(cluster1);
             updateMergeCandidateScores(cluster2, mergeCandidates, contextCounts);
+            //no checkpoints are written here: the scores in mergeCandidates are only partially updated and can not be recomputed on resume
+            state.addMerge(cluster1, cluster2);
+        }
+    }
+
+    /**
+     * Utility method to check that the incrementally updated scores of the merge loss table are identical to the scores computed from scratch
+     */
+
+    private void checkMergeLossTable(MergeLossTable mergeLossTable, ContextCounts contextCounts) {
+        int[] allClusters = contextCounts.getAllClusters().toArray();
+        for (int cluster1 : allClusters) {
+            double ski = MutualInformationUtils.computeSK(cluster1, contextCounts);
+            for (int cluster2 : allClusters) {
+                if (cluster1 < cluster2) {
+                    double score = MutualInformationUtils.computeMergeScore(cluster1, ski, cluster2, contextCounts);
+                    double tableScore = mergeLossTable.getScore(cluster1, cluster2);
+                    if (Math.abs(score - tableScore) > 1e-9) {
+                        throw new RuntimeException("Inconsistent score! " + score + " " + tableScore);
+                    }
+                }
+            }
         }
     }
 
@@ -156,15 +801,15 @@ public class BrownClustering {
      * Utility method to check that the score we computed to swap a phrase from currCluster to newCluster was correct.
      */
 
-    private void checkSwapScores(Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts, ContextCountsImpl phraseContextCounts, int phrase, int currCluster, Pair<Integer, Double> bestClusterScore, double oldScore, int newCluster) {
+    private void checkSwapScores(Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts, CompactContextCounts phraseContextCounts, int phrase, int currCluster, Pair<Integer, Double> bestClusterScore, double oldScore, int newCluster) {
         ContextCountsImpl debugContextCountsForPhrase = mapPhraseCountsToClusterCounts(phrase, phraseToClusterMap, phraseContextCounts, SwapWordContextCounts.DUMMY_CLUSTER);
         SwapWordContextCounts debugSwapWordContextCounts = new SwapWordContextCounts(clusterContextCounts, debugContextCountsForPhrase, newCluster);
-        double debugOldScore = computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, currCluster, debugSwapWordContextCounts);
-        double debugNewScore = computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, newCluster, debugSwapWordContextCounts);
-        if (oldScore != debugOldScore) {
+        double debugOldScore = MutualInformationUtils.computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, currCluster, debugSwapWordContextCounts);
+        double debugNewScore = MutualInformationUtils.computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, newCluster, debugSwapWordContextCounts);
+        if (Math.abs(oldScore - debugOldScore) > 1e-9) {
             throw new RuntimeException("Inconsistent score! " + oldScore + " " + debugOldScore);
         }
-        if (debugNewScore != bestClusterScore.getSecond()) {
+        if (Math.abs(debugNewScore - bestClusterScore.getSecond()) > 1e-9) {
             throw new RuntimeException("Inconsistent score! " + bestClusterScore.getSecond() + " " + debugNewScore);
         }
     }
@@ -173,166 +818,307 @@ public class BrownClustering {
      * For a given phrase, collect all cluster counts that correspond to occurrences of this phrase in the corpus
      */
 
-    private ContextCountsImpl mapPhraseCountsToClusterCounts(int phrase, Int2IntOpenHashMap phraseToClusterMap, ContextCounts phraseContextCounts, int newCluster) {
+    static ContextCountsImpl mapPhraseCountsToClusterCounts(int phrase, Int2IntOpenHashMap phraseToClusterMap, CompactContextCounts phraseContextCounts, int newCluster) {
         Map<Integer, Int2IntOpenHashMap> prevClusterCounts = new HashMap<>();
         Map<Integer, Int2IntOpenHashMap> nextClusterCounts = new HashMap<>();
-        addCounts(phraseToClusterMap, phraseContextCounts.getPrevCounts(phrase), prevClusterCounts, nextClusterCounts, phrase, true, newCluster);
-        addCounts(phraseToClusterMap, phraseContextCounts.getNextCounts(phrase), nextClusterCounts, prevClusterCounts, phrase, false, newCluster);
+        addCounts(phraseToClusterMap, phraseContextCounts.getPrevRows(), prevClusterCounts, nextClusterCounts, phrase, true, newCluster);
+        addCounts(phraseToClusterMap, phraseContextCounts.getNextRows(), nextClusterCounts, prevClusterCounts, phrase, false, newCluster);
         return new ContextCountsImpl(prevClusterCounts, nextClusterCounts);
     }
 
-    private void addCounts(Int2IntOpenHashMap phraseToClusterMap, Int2IntOpenHashMap phraseContextCounts, Map<Integer, Int2IntOpenHashMap> prevClusterCounts, Map<Integer, Int2IntOpenHashMap> nextClusterCounts, int phrase, boolean includeIdentityCounts, int newCluster) {
+    private static void addCounts(Int2IntOpenHashMap phraseToClusterMap, SparseCountRows phraseContextCounts, Map<Integer, Int2IntOpenHashMap> prevClusterCounts, Map<Integer, Int2IntOpenHashMap> nextClusterCounts, int phrase, boolean includeIdentityCounts, int newCluster) {
         Int2IntOpenHashMap phrasePrevClusterCounts = prevClusterCounts.get(newCluster);
         if (phrasePrevClusterCounts == null) {
             phrasePrevClusterCounts = ContextCountsUtils.createNewInt2IntMap();
             prevClusterCounts.put(newCluster, phrasePrevClusterCounts);
         }
-        for (Int2IntOpenHashMap.Entry otherPhraseEntry : phraseContextCounts.int2IntEntrySet()) {
-            int otherPhrase = otherPhraseEntry.getIntKey();
+        for (int ind = phraseContextCounts.getStart(phrase); ind < phraseContextCounts.getEnd(phrase); ind++) {
+            int otherPhrase = phraseContextCounts.getKeyAt(ind);
+            int count = phraseContextCounts.getCountAt(ind);
             if (phrase != otherPhrase || includeIdentityCounts) {
                 int clusterOtherPhrase = otherPhrase == phrase ? newCluster : phraseToClusterMap.get(otherPhrase);
-                phrasePrevClusterCounts.addTo(clusterOtherPhrase, otherPhraseEntry.getIntValue());
+                phrasePrevClusterCounts.addTo(clusterOtherPhrase, count);
                 Int2IntOpenHashMap otherPhraseNextCounts = nextClusterCounts.get(clusterOtherPhrase);
                 if (otherPhraseNextCounts == null) {
                     otherPhraseNextCounts = ContextCountsUtils.createNewInt2IntMap();
                     nextClusterCounts.put(clusterOtherPhrase, otherPhraseNextCounts);
                 }
-                otherPhraseNextCounts.addTo(newCluster, otherPhraseEntry.getValue());
+                otherPhraseNextCounts.addTo(newCluster, count);
             }
         }
     }
 
-    private void removeMergeCandidates(List<MergeCandidate> mergeCandidates, int smallCluster) {
-        mergeCandidates.removeIf(next -> next.getCluster1() == smallCluster || next.getCluster2() == smallCluster);
-    }
-
     /**
      * Compute the scores of all merge candidates
      */
 
-    private List<MergeCandidate> computeAllScores(ContextCounts contextCounts) {
-        List<MergeCandidate> mergeCandidates = Collections.synchronizedList(new ArrayList<>());
-        Set<Integer> allClusters = contextCounts.getAllClusters();
-        allClusters.parallelStream().forEach(cluster1 -> {
-            double ski = computeSK(cluster1, contextCounts);
-            for (Integer cluster2 : allClusters) {
-                if (cluster1 < cluster2) {
-                    double score = computeMergeScore(cluster1, ski, cluster2, contextCounts);
-                    mergeCandidates.add(new MergeCandidate(cluster1, cluster2, score));
-                }
+    static MergeCandidateQueue computeAllScores(ContextCounts contextCounts) {
+        int[] allClusters = contextCounts.getAllClusters().sorted().toArray();
+        MergeCandidateQueue mergeCandidates = new MergeCandidateQueue(allClusters);
+        //every cluster1 writes the scores of its own candidates, so no synchronization is needed
+        ParallelUtils.forEach(0, allClusters.length, 1, slot1 -> {
+            int cluster1 = allClusters[slot1];
+            double ski = contextCounts.getSk(cluster1);
+            for (int slot2 = slot1 + 1; slot2 < allClusters.length; slot2++) {
+                int cluster2 = allClusters[slot2];
+                double score = MutualInformationUtils.computeMergeScore(cluster1, ski, cluster2, contextCounts);
+                mergeCandidates.setScore(mergeCandidates.getCandidate(cluster1, cluster2), score);
             }
         });
-        Collections.sort(mergeCandidates);
+        mergeCandidates.initialize();
         return mergeCandidates;
     }
 
-    private void updateMergeCandidateScores(int cluster2, List<MergeCandidate> mergeCandidates, ContextCounts contextCounts) {
-        double skj = computeSK(cluster2, contextCounts);
-        mergeCandidates.parallelStream().forEach(mergeCandidate -> {
-            if (mergeCandidate.getCluster2() == cluster2) {
-                double ski = computeSK(mergeCandidate.getCluster1(), contextCounts);
-                mergeCandidate.setScore(computeMergeScore(mergeCandidate.getCluster1(), ski, mergeCandidate.getCluster2(), skj, contextCounts));
+    private void updateMergeCandidateScores(int cluster2, MergeCandidateQueue mergeCandidates, ContextCounts contextCounts) {
+        Object event = ClusteringRecorder.beginScoringBatch();
+        double skj = contextCounts.getSk(cluster2);
+        int[] candidatesToUpdate = new int[mergeCandidates.getNumberOfClusters()];
+        int numberOfCandidatesToUpdate = 0;
+        for (int slot = 0; slot < mergeCandidates.getNumberOfClusters() && mergeCandidates.getCluster(slot) < cluster2; slot++) {
+            int candidate = mergeCandidates.getCandidate(mergeCandidates.getCluster(slot), cluster2);
+            if (mergeCandidates.isInQueue(candidate)) {
+                candidatesToUpdate[numberOfCandidatesToUpdate++] = candidate;
             }
+        }
+        double[] newScores = new double[numberOfCandidatesToUpdate];
+        ParallelUtils.forEach(0, numberOfCandidatesToUpdate, MIN_SCORES_PER_TASK, i -> {
+            int cluster1 = mergeCandidates.getCluster1(candidatesToUpdate[i]);
+            double ski = contextCounts.getSk(cluster1);
+            newScores[i] = MutualInformationUtils.computeMergeScore(cluster1, ski, cluster2, skj, contextCounts);
         });
-        Collections.sort(mergeCandidates);
+        for (int i = 0; i < numberOfCandidatesToUpdate; i++) {
+            mergeCandidates.updateScore(candidatesToUpdate[i], newScores[i]);
+        }
+        endScoringBatch(event, cluster2, numberOfCandidatesToUpdate);
     }
 
-    private Pair<Integer, Double> findBestClusterToMerge(int origCluster, int minCluster, int maxCluster, ContextCounts clusterContextCounts) {
+    private void endScoringBatch(Object event, int cluster, long numberOfScores) {
+        metrics.addScoreEvaluations(numberOfScores);
+        ClusteringRecorder.endScoringBatch(event, cluster, numberOfScores);
+    }
+
+    private static long countPairs(int numberOfClusters) {
+        return (long) numberOfClusters * (numberOfClusters - 1) / 2;
+    }
+
+    Pair<Integer, Double> findBestClusterToMerge(int origCluster, int minCluster, int maxCluster, ContextCounts clusterContextCounts) {
+        IntToDoubleFunction scoreFunction = cluster -> MutualInformationUtils.computeMergeScore(origCluster, 0.0, cluster, clusterContextCounts);
+        if (pruneCandidates) {
+            Int2IntOpenHashMap prevCounts = clusterContextCounts.getPrevCounts(origCluster);
+            Int2IntOpenHashMap nextCounts = clusterContextCounts.getNextCounts(origCluster);
+            return findBestCluster(origCluster, minCluster, maxCluster, clusterContextCounts.getAllClusters(), cluster -> prevCounts.containsKey(cluster) || nextCounts.containsKey(cluster),
+                    scoreFunction, cluster -> MutualInformationUtils.computeMergeScoreUpperBound(origCluster, cluster, clusterContextCounts));
+        } else {
+            return findBestCluster(origCluster, minCluster, maxCluster, clusterContextCounts.getAllClusters(), scoreFunction);
+        }
+    }
+
+    private Pair<Integer, Double> findBestCluster(int origCluster, int minCluster, int maxCluster, IntStream clusters, IntToDoubleFunction scoreFunction) {
+        Object event = ClusteringRecorder.beginFindBestCluster();
+        int[] candidates = clusters.filter(cluster -> cluster >= minCluster && cluster < maxCluster && cluster != origCluster).toArray();
         MutableDouble bestScore = new MutableDouble(-Double.MAX_VALUE);
         MutableInt bestCluster = new MutableInt(-1);
-        clusterContextCounts.getAllClusters().parallelStream().forEach(cluster -> {
-            if (cluster >= minCluster && cluster < maxCluster && cluster != origCluster) {
-                double score = computeMergeScore(origCluster, 0.0, cluster, clusterContextCounts);
-                if (score > bestScore.doubleValue()) {
-                    synchronized (bestScore) {
-                        if (score > bestScore.doubleValue()) { //bestScore might have changed while acquiring lock
-                            bestScore.setValue(score);
-                            bestCluster.setValue(cluster);
-                        }
+        ParallelUtils.forEach(0, candidates.length, MIN_SCORES_PER_TASK, i -> updateBestCluster(candidates[i], scoreFunction.applyAsDouble(candidates[i]), bestScore, bestCluster));
+        numberOfCandidates.add(candidates.length);
+        return endFindBestCluster(event, origCluster, candidates.length, new Pair<>(bestCluster.intValue(), bestScore.doubleValue()));
+    }
+
+    /**
+     * Same result as findBestCluster(origCluster, minCluster, maxCluster, clusters, scoreFunction), but first scores the adjacent clusters.
+     * Other clusters are skipped if upperBoundFunction shows that their score is lower than the best score found so far.
+     *
+     * @param isAdjacent         selects the clusters that occur next to origCluster, these usually have the highest scores
+     * @param upperBoundFunction upper bound of scoreFunction for clusters that are not adjacent
+     */
+
+    private Pair<Integer, Double> findBestCluster(int origCluster, int minCluster, int maxCluster, IntStream clusters, IntPredicate isAdjacent, IntToDoubleFunction scoreFunction, IntToDoubleFunction upperBoundFunction) {
+        Object event = ClusteringRecorder.beginFindBestCluster();
+        int[] candidates = clusters.filter(cluster -> cluster >= minCluster && cluster < maxCluster && cluster != origCluster).toArray();
+        MutableDouble bestScore = new MutableDouble(-Double.MAX_VALUE);
+        MutableInt bestCluster = new MutableInt(-1);
+        boolean[] adjacent = new boolean[candidates.length];
+        ParallelUtils.forEach(0, candidates.length, MIN_SCORES_PER_TASK, i -> {
+            adjacent[i] = isAdjacent.test(candidates[i]);
+            if (adjacent[i]) {
+                updateBestCluster(candidates[i], scoreFunction.applyAsDouble(candidates[i]), bestScore, bestCluster);
+            }
+        });
+        ParallelUtils.forEach(0, candidates.length, MIN_SCORES_PER_TASK, i -> {
+            if (!adjacent[i]) {
+                int cluster = candidates[i];
+                double upperBound = upperBoundFunction.applyAsDouble(cluster);
+                if (upperBound < bestScore.doubleValue()) {
+                    numberOfPrunedCandidates.increment();
+                    if (DO_TESTS) {
+                        checkUpperBound(cluster, scoreFunction.applyAsDouble(cluster), upperBound);
                     }
+                } else {
+                    updateBestCluster(cluster, scoreFunction.applyAsDouble(cluster), bestScore, bestCluster);
                 }
             }
         });
-        return new Pair<>(bestCluster.intValue(), bestScore.doubleValue());
+        numberOfCandidates.add(candidates.length);
+        return endFindBestCluster(event, origCluster, candidates.length, new Pair<>(bestCluster.intValue(), bestScore.doubleValue()));
     }
 
-    /**
-     * see top of page 7 of [Brown et al.].
-     */
-
-    private double computeMergeScore(int cki, double ski, int ckj, ContextCounts contextCounts) {
-        return computeMergeScore(cki, ski, ckj, computeSK(ckj, contextCounts), contextCounts);
+    private static Pair<Integer, Double> endFindBestCluster(Object event, int origCluster, int numberOfCandidates, Pair<Integer, Double> bestClusterScore) {
+        ClusteringRecorder.endFindBestCluster(event, origCluster, bestClusterScore.getFirst(), bestClusterScore.getSecond(), numberOfCandidates);
+        return bestClusterScore;
     }
 
-    private double computeMergeScore(int cki, double ski, int ckj, double skj, ContextCounts originalCounts) {
-        MergedContextCounts mergedCounts = new MergedContextCounts(cki, ckj, originalCounts);
-        double result = -ski - skj;
-        result += computeSK(ckj, mergedCounts);
-        return result;
+    private void updateBestCluster(int cluster, double score, MutableDouble bestScore, MutableInt bestCluster) {
+        if (score > bestScore.doubleValue()) {
+            synchronized (bestScore) {
+                if (score > bestScore.doubleValue()) { //bestScore might have changed while acquiring lock
+                    bestScore.setValue(score);
+                    bestCluster.setValue(cluster);
+                }
+            }
+        }
     }
 
-    private double computeSK(int cluster, ContextCounts contextCounts) {
-        double sk = 0;
-        double grandTotal = contextCounts.getGrandTotal();
-        int prevTotal = contextCounts.getPrevTotal(cluster);
-        for (Int2IntOpenHashMap.Entry entry : contextCounts.getPrevCounts(cluster).int2IntEntrySet()) {
-            sk += computeQK(entry.getIntValue(), contextCounts.getNextTotal(entry.getIntKey()), prevTotal, grandTotal);
+    private void checkUpperBound(int cluster, double score, double upperBound) {
+        if (score > upperBound) {
+            throw new RuntimeException("Score " + score + " of cluster " + cluster + " exceeds its upper bound " + upperBound);
         }
-        Int2IntOpenHashMap nextCounts = contextCounts.getNextCounts(cluster);
-        int nextTotal = contextCounts.getNextTotal(cluster) - nextCounts.get(cluster);
-        for (Int2IntOpenHashMap.Entry entry : nextCounts.int2IntEntrySet()) {
-            if (entry.getIntKey() != cluster) {
-                sk += computeQK(entry.getIntValue(), nextTotal, contextCounts.getPrevTotal(entry.getIntKey()), grandTotal);
-            }
+    }
+
+    private void reportPrunedCandidates(int step) {
+        long candidates = numberOfCandidates.sumThenReset();
+        long prunedCandidates = numberOfPrunedCandidates.sumThenReset();
+        metrics.addScoreEvaluations(candidates - prunedCandidates);
+        if (pruneCandidates && candidates > 0) {
+            listener.candidatesPruned(step, candidates, prunedCandidates);
         }
-        return sk;
     }
 
-    private double computeQK(int jointCounts, int totalCki, int totalCkj, double grandTotal) {
-        if (jointCounts > 0) {
-            double pklm = jointCounts / grandTotal;
-            double plkl = totalCki / grandTotal;
-            double prkm = totalCkj / grandTotal;
-            if (DO_TESTS) {
-                checkProbability(pklm);
-                checkProbability(plkl);
-                checkProbability(prkm);
-                if (plkl == 0 || prkm == 0) {
-                    throw new RuntimeException("Illegal probabilities!");
+    /**
+     * Writes for every phrase a line with the bit path of its cluster, the phrase and its frequency. The lines are sorted by bit path and
+     * then by phrase. Since the bit paths of the leaves form a prefix code, a single traversal of the tree from the root, left child first,
+     * visits the leaves in sorted order. The bit path of the current node is kept in one buffer, so every line is written directly. Only the
+     * phrases within a cluster still need to be sorted, which is done once for all phrases with a primitive sort on (cluster, phrase).
+     */
+
+    void writeOutput(Map<Integer, String> phraseMap, Int2IntOpenHashMap phraseToClusterMap, Map<Integer, ClusterHistoryNode> nodes, Int2IntOpenHashMap phraseFrequencies) throws IOException {
+        //phrases sorted by cluster and, within a cluster, by phrase. The comparator only reads primitive arrays indexed by position.
+        int numberOfPhrases = phraseToClusterMap.size();
+        int[] phraseAt = new int[numberOfPhrases];
+        int[] clusterAt = new int[numberOfPhrases];
+        String[] outputPhraseAt = new String[numberOfPhrases];
+        int[] order = new int[numberOfPhrases];
+        ObjectIterator<Int2IntMap.Entry> iterator = phraseToClusterMap.int2IntEntrySet().fastIterator();
+        for (int pos = 0; pos < numberOfPhrases; pos++) {
+            Int2IntMap.Entry entry = iterator.next();
+            phraseAt[pos] = entry.getIntKey();
+            clusterAt[pos] = entry.getIntValue();
+            outputPhraseAt[pos] = phraseMap.get(phraseAt[pos]);
+            order[pos] = pos;
+        }
+        IntArrays.quickSort(order, new OutputPhraseComparator(outputPhraseAt) {
+            @Override
+            public int compare(int pos1, int pos2) {
+                int result = Integer.compare(clusterAt[pos1], clusterAt[pos2]);
+                return result != 0 ? result : super.compare(pos1, pos2);
+            }
+        });
+        Int2IntOpenHashMap firstPhraseOfCluster = ContextCountsUtils.createNewInt2IntMap(nodes.size());
+        for (int ind = order.length - 1; ind >= 0; ind--) {
+            firstPhraseOfCluster.put(clusterAt[order[ind]], ind);
+        }
+        //clusters without context counts were never merged, their phrases have an empty bit path and come first
+        IntArrayList unmergedPhrases = new IntArrayList();
+        ClusterHistoryNode root = null;
+        for (ClusterHistoryNode leaf : nodes.values()) {
+            if (leaf.getParent() == null) {
+                for (int ind = firstPhraseOfCluster.get(leaf.getCluster()); ind < order.length && clusterAt[order[ind]] == leaf.getCluster(); ind++) {
+                    unmergedPhrases.add(order[ind]);
+                }
+            } else if (root == null) {
+                root = leaf;
+                while (root.getParent() != null) {
+                    root = root.getParent();
                 }
             }
-            return pklm * Math.log(pklm / (plkl * prkm));
-        } else {
-            return 0.0;
         }
-    }
-
-    private void writeOutput(Map<Integer, String> phraseMap, Int2IntOpenHashMap phraseToClusterMap, Map<Integer, ClusterHistoryNode> nodes, Int2IntOpenHashMap phraseFrequencies) throws IOException {
-        List<String> outputLines = new ArrayList<>();
-        for (Integer phraseInd : phraseToClusterMap.keySet()) {
-            String phrase = phraseMap.get(phraseInd);
-            String output = "";
-            ClusterHistoryNode node = nodes.get(phraseToClusterMap.get(phraseInd));
-            while (node != null) {
-                ClusterHistoryNode parent = node.getParent();
-                if (parent != null) {
-                    if (parent.getLeftChild() == node) {
-                        output = '0' + output;
+        IntArrays.quickSort(unmergedPhrases.elements(), 0, unmergedPhrases.size(), new OutputPhraseComparator(outputPhraseAt));
+        try (Writer writer = Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8)) {
+            char[] path = new char[64];
+            for (int ind = 0; ind < unmergedPhrases.size(); ind++) {
+                int pos = unmergedPhrases.getInt(ind);
+                writeOutputLine(writer, path, 0, outputPhraseAt[pos], phraseFrequencies.get(phraseAt[pos]));
+            }
+            if (root != null) {
+                Deque<ClusterHistoryNode> stack = new ArrayDeque<>();
+                IntArrayList depths = new IntArrayList();
+                stack.push(root);
+                depths.add(0);
+                while (!stack.isEmpty()) {
+                    ClusterHistoryNode node = stack.pop();
+                    int depth = depths.removeInt(depths.size() - 1);
+                    if (depth > 0) {
+                        if (depth > path.length) {
+                            path = Arrays.copyOf(path, path.length * 2);
+                        }
+                        path[depth - 1] = node.getParent().getLeftChild() == node ? '0' : '1';
+                    }
+                    if (node.isLeafNode()) {
+                        int cluster = node.getCluster();
+                        for (int ind = firstPhraseOfCluster.get(cluster); ind < order.length && clusterAt[order[ind]] == cluster; ind++) {
+                            writeOutputLine(writer, path, depth, outputPhraseAt[order[ind]], phraseFrequencies.get(phraseAt[order[ind]]));
+                        }
                     } else {
-                        output = '1' + output;
+                        //the left child is visited first
+                        stack.push(node.getRightChild());
+                        depths.add(depth + 1);
+                        stack.push(node.getLeftChild());
+                        depths.add(depth + 1);
                     }
                 }
-                node = parent;
             }
-            outputLines.add(output + '\t' + phrase + "\t" + phraseFrequencies.get(phraseInd));
         }
-        Collections.sort(outputLines);
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
-        for (String line : outputLines) {
-            writer.write(line);
-            writer.write('\n');
+    }
+
+    private static void writeOutputLine(Writer writer, char[] path, int pathLength, String phrase, int frequency) throws IOException {
+        writer.write(path, 0, pathLength);
+        writer.write('\t');
+        writer.write(phrase);
+        writer.write('\t');
+        writer.write(Integer.toString(frequency));
+        writer.write('\n');
+    }
+
+    /**
+     * Compares the phrases at two positions in the same way as the output lines that contain them, i.e. as if every phrase is followed by a
+     * tab. Implements both compare methods, since the IntComparator of fastutil 6 also declares the boxed one.
+     */
+
+    private static class OutputPhraseComparator implements IntComparator {
+
+        private final String[] phrases;
+
+        public OutputPhraseComparator(String[] phrases) {
+            this.phrases = phrases;
+        }
+
+        @Override
+        public int compare(int pos1, int pos2) {
+            String phrase1 = phrases[pos1];
+            String phrase2 = phrases[pos2];
+            int length = Math.min(phrase1.length(), phrase2.length());
+            for (int i = 0; i < length; i++) {
+                if (phrase1.charAt(i) != phrase2.charAt(i)) {
+                    return phrase1.charAt(i) - phrase2.charAt(i);
+                }
+            }
+            char next1 = phrase1.length() > length ? phrase1.charAt(length) : '\t';
+            char next2 = phrase2.length() > length ? phrase2.charAt(length) : '\t';
+            return next1 - next2;
+        }
+
+        @Override
+        public int compare(Integer pos1, Integer pos2) {
+            return compare(pos1.intValue(), pos2.intValue());
         }
-        writer.close();
     }
 
     private Map<Integer, ClusterHistoryNode> initializeHistoryNodes(Int2IntOpenHashMap phraseToClusterMap) {
@@ -349,10 +1135,100 @@ public class BrownClustering {
         nodes.put(largeCluster, parent);
     }
 
-    private ContextCountsImpl extractContextCounts(Map<Integer, String> phraseMap) throws IOException {
+    /**
+     * Maps the context counts stored in phraseContextCountsFile. The counts are first extracted and written to the file if it does not exist
+     * or was created for other phrases.
+     */
+
+    private CompactContextCounts readContextCounts(Map<Integer, String> phraseMap, Int2IntOpenHashMap phraseFrequencies) throws IOException {
+        long fingerprint = computeFingerprint(phraseMap, phraseFrequencies);
+        Long storedFingerprint = CompactContextCounts.readFingerprint(phraseContextCountsFile);
+        if (storedFingerprint == null || storedFingerprint != fingerprint) {
+            extractContextCounts(phraseMap).writeTo(phraseContextCountsFile, fingerprint);
+            UI.write("Wrote context counts to " + phraseContextCountsFile);
+        } else {
+            UI.write("Reusing context counts of " + phraseContextCountsFile);
+        }
+        return CompactContextCounts.map(phraseContextCountsFile);
+    }
+
+    /**
+     * Identifies the corpus (by the path, size and modification time of the file that is read) and the selected phrases, so that counts
+     * of an edited corpus or of another minFrequencyOfPhrase are never reused
+     */
+
+    private long computeFingerprint(Map<Integer, String> phraseMap, Int2IntOpenHashMap phraseFrequencies) {
+        File corpusFile = new File(encodedCorpus != null ? encodedCorpus : inputFile);
+        long fingerprint = corpusFile.getAbsolutePath().hashCode();
+        fingerprint = fingerprint * 31 + corpusFile.length();
+        fingerprint = fingerprint * 31 + corpusFile.lastModified();
+        fingerprint = fingerprint * 31 + minFrequencyOfPhrase;
+        fingerprint = fingerprint * 31 + phraseMap.size();
+        for (int phrase = 0; phrase < phraseMap.size(); phrase++) {
+            fingerprint = fingerprint * 31 + phraseMap.get(phrase).hashCode();
+            fingerprint = fingerprint * 31 + phraseFrequencies.get(phrase);
+        }
+        return fingerprint;
+    }
+
+    CompactContextCounts extractContextCounts(Map<Integer, String> phraseMap) throws IOException {
+        if (encodedCorpus != null) {
+            return extractContextCountsFromEncodedCorpus(phraseMap);
+        } else if (useMemoryMappedInput) {
+            return extractContextCountsMemoryMapped(phraseMap);
+        } else {
+            return extractContextCountsWithReader(phraseMap);
+        }
+    }
+
+    private CompactContextCounts extractContextCountsFromEncodedCorpus(Map<Integer, String> phraseMap) throws IOException {
+        Map<String, Integer> invertedPhraseMap = invert(phraseMap);
+        Vocabulary vocabulary = EncodedCorpus.readVocabulary(encodedCorpus);
+        //map the phrases of the encoded corpus to the phrases selected for clustering
+        int[] phraseMapping = new int[vocabulary.size()];
+        for (int ind = 0; ind < vocabulary.size(); ind++) {
+            Integer phrase = invertedPhraseMap.get(vocabulary.getPhrase(ind));
+            phraseMapping[ind] = phrase == null ? invertedPhraseMap.get(UNKNOWN_PHRASE) : phrase; //infrequent phrase
+        }
+        if (bigramMemoryBudget > 0) {
+            try (ExternalBigramCounter bigramCounter = new ExternalBigramCounter(bigramMemoryBudget, getBigramSpillDirectory())) {
+                EncodedCorpus.readBigrams(encodedCorpus, phraseMapping, bigramCounter);
+                return bigramCounter.createContextCounts(phraseMap.size());
+            } catch (UncheckedIOException exp) {
+                throw exp.getCause();
+            }
+        } else {
+            Long2IntOpenHashMap bigramCounts = EncodedCorpus.countBigrams(encodedCorpus, phraseMapping);
+            return CompactContextCounts.fromBigramCounts(phraseMap.size(), bigramCounts);
+        }
+    }
+
+    private File getBigramSpillDirectory() {
+        return bigramSpillDirectory == null ? null : new File(bigramSpillDirectory);
+    }
+
+    private CompactContextCounts extractContextCountsMemoryMapped(Map<Integer, String> phraseMap) throws IOException {
+        Vocabulary vocabulary = new Vocabulary();
+        for (int phrase = 0; phrase < phraseMap.size(); phrase++) {
+            vocabulary.add(phraseMap.get(phrase)); //index in vocabulary is identical to the index of the phrase
+        }
+        int unknownPhrase = vocabulary.get(UNKNOWN_PHRASE);
+        if (bigramMemoryBudget > 0) {
+            //tokenize on a single thread, so that only one buffer of bigrams is kept in memory
+            try (ExternalBigramCounter externalBigramCounter = new ExternalBigramCounter(bigramMemoryBudget, getBigramSpillDirectory())) {
+                new CorpusTokenizer().tokenize(inputFile, new BigramCounter(vocabulary, unknownPhrase, externalBigramCounter));
+                return externalBigramCounter.createContextCounts(phraseMap.size());
+            } catch (UncheckedIOException exp) {
+                throw exp.getCause();
+            }
+        }
+        BigramCounter bigramCounter = CorpusTokenizer.tokenizeInParallel(inputFile, () -> new BigramCounter(vocabulary, unknownPhrase), BigramCounter::merge);
+        return CompactContextCounts.fromBigramCounts(phraseMap.size(), bigramCounter.getBigramCounts());
+    }
+
+    private CompactContextCounts extractContextCountsWithReader(Map<Integer, String> phraseMap) throws IOException {
         Map<String, Integer> invertedPhraseMap = invert(phraseMap); //mapping of words to their index
-        Map<Integer, Int2IntOpenHashMap> prevContextCounts = createEmptyCounts(phraseMap.size());
-        Map<Integer, Int2IntOpenHashMap> nextContextCounts = createEmptyCounts(phraseMap.size());
+        Long2IntOpenHashMap bigramCounts = new Long2IntOpenHashMap();
         BufferedReader rdr = new BufferedReader(new FileReader(inputFile));
         while (rdr.ready()) {
             String line = rdr.readLine();
@@ -365,16 +1241,13 @@ public class BrownClustering {
                     currPhrase = invertedPhraseMap.get(UNKNOWN_PHRASE);
                 }
                 if (prevPhrase != null) {
-                    nextContextCounts.get(prevPhrase).addTo(currPhrase, 1);
-                    prevContextCounts.get(currPhrase).addTo(prevPhrase, 1);
+                    bigramCounts.addTo(SparseCountRows.packPair(prevPhrase, currPhrase), 1);
                 }
                 prevPhrase = currPhrase;
             }
         }
         rdr.close();
-        trimCounts(prevContextCounts);
-        trimCounts(nextContextCounts);
-        return new ContextCountsImpl(prevContextCounts, nextContextCounts);
+        return CompactContextCounts.fromBigramCounts(phraseMap.size(), bigramCounts);
     }
 
     private Map<String, Integer> invert(Map<Integer, String> map) {
@@ -385,19 +1258,7 @@ public class BrownClustering {
         return invertedMap;
     }
 
-    private void trimCounts(Map<Integer, Int2IntOpenHashMap> wordCounts) {
-        wordCounts.values().stream().forEach(Int2IntOpenHashMap::trim);
-    }
-
-    private Map<Integer, Int2IntOpenHashMap> createEmptyCounts(int size) {
-        Map<Integer, Int2IntOpenHashMap> result = new HashMap<>();
-        for (int i = 0; i < size; i++) {
-            result.put(i, ContextCountsUtils.createNewInt2IntMap());
-        }
-        return result;
-    }
-
-    private Pair<Map<Integer, String>, Int2IntOpenHashMap> readPhrases() throws IOException {
+    Pair<Map<Integer, String>, Int2IntOpenHashMap> readPhrases() throws IOException {
         Map<String, Integer> rawPraseCounts = countPhrases();
         Map<Integer, String> phraseToIndexMap = assignWordsToIndexBasedOnFrequency(rawPraseCounts);
         Int2IntOpenHashMap phraseFrequencies = new Int2IntOpenHashMap(phraseToIndexMap.size());
@@ -420,7 +1281,14 @@ public class BrownClustering {
 
     private Map<String, Integer> countPhrases() throws IOException {
         //Count how often every phrase occurs in the input
-        Map<String, Integer> phraseCounts = countAllPhrases(inputFile);
+        Map<String, Integer> phraseCounts;
+        if (encodedCorpus != null) {
+            phraseCounts = toPhraseCounts(EncodedCorpus.readVocabulary(encodedCorpus));
+        } else if (useMemoryMappedInput) {
+            phraseCounts = countAllPhrasesMemoryMapped(inputFile);
+        } else {
+            phraseCounts = countAllPhrasesWithReader(inputFile);
+        }
         //Select phrases that occur >= minFrequencyOfPhrase
         int totalDroppedCounts = 0;
         Iterator<Map.Entry<String, Integer>> iterator = phraseCounts.entrySet().iterator();
@@ -437,7 +1305,21 @@ public class BrownClustering {
         return phraseCounts;
     }
 
-    private Map<String, Integer> countAllPhrases(String textInputFile) throws IOException {
+    static Map<String, Integer> countAllPhrasesMemoryMapped(String textInputFile) throws IOException {
+        Vocabulary vocabulary = CorpusTokenizer.tokenizeInParallel(textInputFile, PhraseCounter::new, PhraseCounter::merge).getVocabulary();
+        return toPhraseCounts(vocabulary);
+    }
+
+    private static Map<String, Integer> toPhraseCounts(Vocabulary vocabulary) {
+        //phrases are added in the order of their first occurrence, just like countAllPhrasesWithReader()
+        Object2IntOpenHashMap<String> phraseCounts = new Object2IntOpenHashMap<>();
+        for (int phrase = 0; phrase < vocabulary.size(); phrase++) {
+            phraseCounts.put(vocabulary.getPhrase(phrase), vocabulary.getCount(phrase));
+        }
+        return phraseCounts;
+    }
+
+    static Map<String, Integer> countAllPhrasesWithReader(String textInputFile) throws IOException {
         Object2IntOpenHashMap<String> phraseCounts = new Object2IntOpenHashMap<>();
         BufferedReader rdr = new BufferedReader(new FileReader(textInputFile));
         while (rdr.ready()) {
@@ -455,7 +1337,7 @@ public class BrownClustering {
      * Could be adapted to have phrases of more than 1 word (e.g. map collocations such as 'fast food' or 'prime minister' to a single phrase)
      */
 
-    private List<String> splitLineInPhrases(String line) {
+    private static List<String> splitLineInPhrases(String line) {
         String[] words = line.toLowerCase().split("\\s");
         List<String> result = new ArrayList<>();
         for (String word : words) {
@@ -466,12 +1348,6 @@ public class BrownClustering {
         return result;
     }
 
-    private void checkProbability(double probability) {
-        if (probability < 0 || probability > 1 || Double.isNaN(probability)) {
-            throw new RuntimeException("Illegal probability " + probability);
-        }
-    }
-
     private Int2IntOpenHashMap initializeClusters(int numberOfPhrases) {
         Int2IntOpenHashMap phraseToCluster = ContextCountsUtils.createNewInt2IntMap(numberOfPhrases);
         for (int i = 0; i < numberOfPhrases; i++) {
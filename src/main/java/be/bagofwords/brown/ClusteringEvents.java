@@ -0,0 +1,240 @@
+package be.bagofwords.brown;
+
+import jdk.jfr.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.ParseException;
+
+/**
+ * Java Flight Recorder events of the clustering, to find out which phase or which merge is slow and to correlate it with garbage
+ * collections and starvation of the ForkJoinPool. The events are recorded with the settings of FLIGHT_RECORDER_SETTINGS (see
+ * BrownClustering.setFlightRecordingFile()), or with any other recording that enables them. This class links against jdk.jfr and is only
+ * used through ClusteringRecorder, which checks that the JVM has a flight recorder. Events are created with
+ * <pre>
+ * ClusterMerge event = new ClusterMerge();
+ * event.begin();
+ * ...
+ * event.end();
+ * if (event.shouldCommit()) {
+ *     ...
+ *     event.commit();
+ * }
+ * </pre>
+ * so that the JIT removes them when no recording is running and their fields are only stored when the event is recorded.
+ */
+class ClusteringEvents {
+
+    public static final String FLIGHT_RECORDER_SETTINGS = "/be/bagofwords/brown/clustering.jfc";
+    private static final String CATEGORY = "Brown Clustering";
+
+    private ClusteringEvents() {
+    }
+
+    /**
+     * Starts a recording with the settings of FLIGHT_RECORDER_SETTINGS, i.e. the events of the clustering together with garbage
+     * collections, parked threads and CPU samples. Closing the result stops the recording, writes it to file and releases it.
+     */
+
+    public static Closeable startRecording(String file) throws IOException {
+        try (Reader reader = new InputStreamReader(ClusteringEvents.class.getResourceAsStream(FLIGHT_RECORDER_SETTINGS), StandardCharsets.UTF_8)) {
+            Recording recording = new Recording(Configuration.create(reader));
+            recording.setName("brown-clustering");
+            recording.start();
+            return () -> {
+                try {
+                    recording.stop();
+                    recording.dump(Paths.get(file));
+                } finally {
+                    recording.close();
+                }
+            };
+        } catch (ParseException exp) {
+            throw new RuntimeException("Could not parse flight recorder settings " + FLIGHT_RECORDER_SETTINGS, exp);
+        }
+    }
+
+    public static Object beginPhase() {
+        Phase event = new Phase();
+        event.begin();
+        return event;
+    }
+
+    public static void endPhase(Object phase, String name) {
+        Phase event = (Phase) phase;
+        event.end();
+        if (event.shouldCommit()) {
+            event.name = name;
+            event.commit();
+        }
+    }
+
+    public static Object beginFindBestCluster() {
+        FindBestCluster event = new FindBestCluster();
+        event.begin();
+        return event;
+    }
+
+    public static void endFindBestCluster(Object findBestCluster, int origCluster, int bestCluster, double bestScore, int numberOfCandidates) {
+        FindBestCluster event = (FindBestCluster) findBestCluster;
+        event.end();
+        if (event.shouldCommit()) {
+            event.origCluster = origCluster;
+            event.bestCluster = bestCluster;
+            event.bestScore = bestScore;
+            event.numberOfCandidates = numberOfCandidates;
+            event.commit();
+        }
+    }
+
+    public static Object beginScoringBatch() {
+        ScoringBatch event = new ScoringBatch();
+        event.begin();
+        return event;
+    }
+
+    public static void endScoringBatch(Object scoringBatch, int cluster, long numberOfScores) {
+        ScoringBatch event = (ScoringBatch) scoringBatch;
+        event.end();
+        if (event.shouldCommit()) {
+            event.cluster = cluster;
+            event.numberOfScores = numberOfScores;
+            event.commit();
+        }
+    }
+
+    public static Object beginClusterMerge() {
+        ClusterMerge event = new ClusterMerge();
+        event.begin();
+        return event;
+    }
+
+    public static void endClusterMerge(Object clusterMerge, int smallCluster, int largeCluster, int numberOfPrevCounts, int numberOfNextCounts) {
+        ClusterMerge event = (ClusterMerge) clusterMerge;
+        event.end();
+        if (event.shouldCommit()) {
+            event.smallCluster = smallCluster;
+            event.largeCluster = largeCluster;
+            event.numberOfPrevCounts = numberOfPrevCounts;
+            event.numberOfNextCounts = numberOfNextCounts;
+            event.commit();
+        }
+    }
+
+    public static Object beginPhraseSwap() {
+        PhraseSwap event = new PhraseSwap();
+        event.begin();
+        return event;
+    }
+
+    public static void endPhraseSwap(Object phraseSwap, int iteration, int phrase, int oldCluster, int newCluster, double gain) {
+        PhraseSwap event = (PhraseSwap) phraseSwap;
+        event.end();
+        if (event.shouldCommit()) {
+            event.iteration = iteration;
+            event.phrase = phrase;
+            event.oldCluster = oldCluster;
+            event.newCluster = newCluster;
+            event.gain = gain;
+            event.commit();
+        }
+    }
+
+    @Name("be.bagofwords.brown.Phase")
+    @Label("Clustering Phase")
+    @Description("A phase of the clustering, see ClusteringMetrics")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Phase extends Event {
+
+        @Label("Name")
+        String name;
+    }
+
+    @Name("be.bagofwords.brown.FindBestCluster")
+    @Label("Find Best Cluster")
+    @Description("Search of the cluster that a phrase or cluster should be merged with or swapped to")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FindBestCluster extends Event {
+
+        @Label("Original Cluster")
+        int origCluster;
+
+        @Label("Best Cluster")
+        int bestCluster;
+
+        @Label("Best Score")
+        double bestScore;
+
+        @Label("Candidates")
+        int numberOfCandidates;
+    }
+
+    @Name("be.bagofwords.brown.ScoringBatch")
+    @Label("Scoring Batch")
+    @Description("Computation of the merge scores of a batch of merge candidates")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ScoringBatch extends Event {
+
+        @Label("Cluster")
+        @Description("Cluster of which the scores are updated, or -1 if the scores of all candidates are computed")
+        int cluster;
+
+        @Label("Scores")
+        long numberOfScores;
+    }
+
+    @Name("be.bagofwords.brown.ClusterMerge")
+    @Label("Cluster Merge")
+    @Description("Merge of the context counts of two clusters")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class ClusterMerge extends Event {
+
+        @Label("Small Cluster")
+        int smallCluster;
+
+        @Label("Large Cluster")
+        int largeCluster;
+
+        @Label("Prev Counts")
+        @Description("Number of clusters in the prev counts of the merged cluster")
+        int numberOfPrevCounts;
+
+        @Label("Next Counts")
+        @Description("Number of clusters in the next counts of the merged cluster")
+        int numberOfNextCounts;
+    }
+
+    @Name("be.bagofwords.brown.PhraseSwap")
+    @Label("Phrase Swap")
+    @Description("A phrase was moved to another cluster")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Enabled(false)
+    static class PhraseSwap extends Event {
+
+        @Label("Iteration")
+        int iteration;
+
+        @Label("Phrase")
+        int phrase;
+
+        @Label("Old Cluster")
+        int oldCluster;
+
+        @Label("New Cluster")
+        int newCluster;
+
+        @Label("Gain")
+        double gain;
+    }
+}
@@ -0,0 +1,60 @@
+package be.bagofwords.brown;
+
+/**
+ * Receives the progress of a clustering. All methods are called from the thread that runs the clustering, often from its inner loops, so
+ * implementations should return quickly. The steps are the step constants of ClusteringState.
+ */
+public interface ClusteringListener {
+
+    /**
+     * Ignores all events, for runs (e.g. benchmarks) that should not pay for progress reporting
+     */
+
+    ClusteringListener NO_OP = new ClusteringListener() {
+    };
+
+    default void stepStarted(int step) {
+    }
+
+    default void stepFinished(int step) {
+    }
+
+    /**
+     * The cluster of an infrequent phrase was merged with cluster
+     */
+
+    default void phraseMerged(int phrase, int cluster) {
+    }
+
+    default void phraseSwapped(int iteration, int phrase, int oldCluster, int newCluster) {
+    }
+
+    /**
+     * @param gain total increase of the score of all swapped phrases
+     */
+
+    default void swapIterationFinished(int iteration, int numberOfPhrasesSwapped, double gain) {
+    }
+
+    /**
+     * The best cluster was searched numberOfCandidates times since the last call, and numberOfPrunedCandidates of these candidates were
+     * skipped because their upper bound could not beat the best score (see BrownClustering.setPruneCandidates())
+     */
+
+    default void candidatesPruned(int step, long numberOfCandidates, long numberOfPrunedCandidates) {
+    }
+
+    /**
+     * Two clusters were merged while building the hierarchical clustering
+     */
+
+    default void clustersMerged(int cluster1, int cluster2, long numberOfCandidatesRemaining) {
+    }
+
+    /**
+     * Called when the clustering ends, after the output is written or after it failed. No events follow until the next clustering starts.
+     */
+
+    default void clusteringFinished() {
+    }
+}
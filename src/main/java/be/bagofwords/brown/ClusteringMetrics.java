@@ -0,0 +1,337 @@
+package be.bagofwords.brown;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers, counters and memory statistics of a clustering. Phases are timed with
+ * <pre>
+ * try (ClusteringMetrics.Phase phase = metrics.startPhase("countPhrases")) {
+ *     ...
+ * }
+ * </pre>
+ * and can be nested. For every phase the duration, the number of bytes allocated by all threads and the used heap at the end of the
+ * phase are recorded. Between start() and finish() the used heap is also sampled every HEAP_SAMPLE_INTERVAL milliseconds to find its
+ * peak. The metrics can be read over JMX while the clustering runs (see register()) and written as JSON when it is finished.
+ */
+public class ClusteringMetrics implements ClusteringMetricsMXBean {
+
+    public static final String OBJECT_NAME = "be.bagofwords.brown:type=ClusteringMetrics";
+    private static final long HEAP_SAMPLE_INTERVAL = 100;
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final List<PhaseResult> finishedPhases = new CopyOnWriteArrayList<>();
+    private final Deque<Phase> runningPhases = new ConcurrentLinkedDeque<>();
+    private final LongAdder numberOfScoreEvaluations = new LongAdder();
+    private final LongAdder numberOfMerges = new LongAdder();
+    private final LongAdder numberOfSwaps = new LongAdder();
+    private final LongAdder numberOfClonedMaps = new LongAdder();
+    private volatile long startTime;
+    private volatile long endTime = -1;
+    private volatile long maxUsedHeap;
+    private Map<Long, Long> allocatedBytesAtStart = Collections.emptyMap();
+    private Map<String, Long> allocatedBytesPerThread = Collections.emptyMap();
+    private ScheduledExecutorService heapSampler;
+    private ObjectName registeredName;
+
+    /**
+     * Starts measuring a clustering. All metrics of a previous clustering are cleared.
+     */
+
+    public synchronized void start() {
+        finishedPhases.clear();
+        runningPhases.clear();
+        numberOfScoreEvaluations.reset();
+        numberOfMerges.reset();
+        numberOfSwaps.reset();
+        numberOfClonedMaps.reset();
+        maxUsedHeap = 0;
+        allocatedBytesPerThread = Collections.emptyMap();
+        startTime = System.nanoTime();
+        endTime = -1;
+        allocatedBytesAtStart = getAllocatedBytesPerThreadId();
+        heapSampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "clustering-heap-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heapSampler.scheduleAtFixedRate(this::sampleUsedHeap, 0, HEAP_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void finish() {
+        if (heapSampler != null) {
+            heapSampler.shutdownNow();
+            heapSampler = null;
+        }
+        sampleUsedHeap();
+        allocatedBytesPerThread = computeAllocatedBytesPerThreadName();
+        endTime = System.nanoTime();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under OBJECT_NAME with the given name. A previously registered bean with
+     * the same name is replaced.
+     */
+
+    public synchronized void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            registeredName = objectName;
+        } catch (JMException exp) {
+            throw new RuntimeException("Could not register clustering metrics", exp);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException exp) {
+                throw new RuntimeException("Could not unregister clustering metrics", exp);
+            }
+            registeredName = null;
+        }
+    }
+
+    public Phase startPhase(String name) {
+        Phase phase = new Phase(name);
+        runningPhases.push(phase);
+        return phase;
+    }
+
+    public void addScoreEvaluations(long numberOfScoreEvaluations) {
+        this.numberOfScoreEvaluations.add(numberOfScoreEvaluations);
+    }
+
+    /**
+     * Counter of the maps cloned by the context counts of the clustering, see ContextCountsImpl.setClonedMapsCounter()
+     */
+
+    public LongAdder getClonedMapsCounter() {
+        return numberOfClonedMaps;
+    }
+
+    public void incrementMerges() {
+        numberOfMerges.increment();
+    }
+
+    public void incrementSwaps() {
+        numberOfSwaps.increment();
+    }
+
+    @Override
+    public String getCurrentPhase() {
+        Phase phase = runningPhases.peek();
+        return phase == null ? null : phase.name;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimes() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (PhaseResult phase : finishedPhases) {
+            result.merge(phase.name, phase.time, Long::sum);
+        }
+        return result;
+    }
+
+    @Override
+    public long getElapsedTime() {
+        long end = endTime == -1 ? System.nanoTime() : endTime;
+        return TimeUnit.NANOSECONDS.toMillis(end - startTime);
+    }
+
+    @Override
+    public long getNumberOfScoreEvaluations() {
+        return numberOfScoreEvaluations.sum();
+    }
+
+    @Override
+    public long getNumberOfClonedMaps() {
+        return numberOfClonedMaps.sum();
+    }
+
+    @Override
+    public long getNumberOfMerges() {
+        return numberOfMerges.sum();
+    }
+
+    @Override
+    public long getNumberOfSwaps() {
+        return numberOfSwaps.sum();
+    }
+
+    @Override
+    public long getUsedHeap() {
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    @Override
+    public long getMaxUsedHeap() {
+        return maxUsedHeap;
+    }
+
+    @Override
+    public synchronized long getAllocatedBytes() {
+        return computeAllocatedBytes(allocatedBytesAtStart);
+    }
+
+    @Override
+    public synchronized String toJson() {
+        StringBuilder result = new StringBuilder();
+        result.append("{\n  \"elapsedTimeMs\": ").append(getElapsedTime()).append(",\n");
+        result.append("  \"phases\": [");
+        for (int i = 0; i < finishedPhases.size(); i++) {
+            PhaseResult phase = finishedPhases.get(i);
+            result.append(i == 0 ? "\n" : ",\n");
+            result.append("    {\"name\": ").append(quote(phase.name)).append(", \"timeMs\": ").append(phase.time).append(", \"allocatedBytes\": ").append(phase.allocatedBytes).append(", \"usedHeapBytes\": ").append(phase.usedHeap).append("}");
+        }
+        result.append("\n  ],\n");
+        result.append("  \"counters\": {\"scoreEvaluations\": ").append(getNumberOfScoreEvaluations()).append(", \"clonedMaps\": ").append(getNumberOfClonedMaps()).append(", \"merges\": ").append(getNumberOfMerges()).append(", \"swaps\": ").append(getNumberOfSwaps()).append("},\n");
+        result.append("  \"heap\": {\"maxUsedBytes\": ").append(getMaxUsedHeap()).append(", \"usedBytes\": ").append(getUsedHeap()).append("},\n");
+        result.append("  \"allocatedBytes\": ").append(getAllocatedBytes()).append(",\n");
+        result.append("  \"allocatedBytesPerThread\": {");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : allocatedBytesPerThread.entrySet()) {
+            result.append(first ? "" : ", ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            first = false;
+        }
+        result.append("}\n}\n");
+        return result.toString();
+    }
+
+    public void writeJson(String file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+
+    private void sampleUsedHeap() {
+        long usedHeap = getUsedHeap();
+        if (usedHeap > maxUsedHeap) {
+            maxUsedHeap = usedHeap; //only written by the sampler thread, or after the sampler was stopped
+        }
+    }
+
+    /**
+     * @return allocated bytes per thread id, or an empty map if the JVM does not support this
+     */
+
+    private Map<Long, Long> getAllocatedBytesPerThreadId() {
+        Map<Long, Long> result = new HashMap<>();
+        if (isAllocatedMemorySupported()) {
+            long[] threadIds = threadBean.getAllThreadIds();
+            long[] allocatedBytes = ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(threadIds);
+            for (int i = 0; i < threadIds.length; i++) {
+                if (allocatedBytes[i] >= 0) {
+                    result.put(threadIds[i], allocatedBytes[i]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of bytes allocated since start by the threads that are still alive, or -1 if the JVM does not support this
+     */
+
+    private long computeAllocatedBytes(Map<Long, Long> start) {
+        if (!isAllocatedMemorySupported()) {
+            return -1;
+        }
+        long result = 0;
+        for (Map.Entry<Long, Long> entry : getAllocatedBytesPerThreadId().entrySet()) {
+            result += entry.getValue() - start.getOrDefault(entry.getKey(), 0L);
+        }
+        return result;
+    }
+
+    private Map<String, Long> computeAllocatedBytesPerThreadName() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<Long, Long> entry : getAllocatedBytesPerThreadId().entrySet()) {
+            ThreadInfo threadInfo = threadBean.getThreadInfo(entry.getKey());
+            if (threadInfo != null) {
+                result.merge(threadInfo.getThreadName(), entry.getValue() - allocatedBytesAtStart.getOrDefault(entry.getKey(), 0L), Long::sum);
+            }
+        }
+        return result;
+    }
+
+    private boolean isAllocatedMemorySupported() {
+        return threadBean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled();
+    }
+
+    private static String quote(String value) {
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /**
+     * A running phase, the phase is finished when it is closed
+     */
+
+    public class Phase implements AutoCloseable {
+
+        private final String name;
+        private final long startTime;
+        private final Map<Long, Long> allocatedBytesAtStart;
+        private final Object event;
+
+        private Phase(String name) {
+            this.name = name;
+            this.startTime = System.nanoTime();
+            this.allocatedBytesAtStart = getAllocatedBytesPerThreadId();
+            this.event = ClusteringRecorder.beginPhase();
+        }
+
+        @Override
+        public void close() {
+            long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+            ClusteringRecorder.endPhase(event, name);
+            runningPhases.remove(this);
+            finishedPhases.add(new PhaseResult(name, time, computeAllocatedBytes(allocatedBytesAtStart), getUsedHeap()));
+        }
+    }
+
+    private static class PhaseResult {
+
+        private final String name;
+        private final long time;
+        private final long allocatedBytes;
+        private final long usedHeap;
+
+        private PhaseResult(String name, long time, long allocatedBytes, long usedHeap) {
+            this.name = name;
+            this.time = time;
+            this.allocatedBytes = allocatedBytes;
+            this.usedHeap = usedHeap;
+        }
+    }
+}
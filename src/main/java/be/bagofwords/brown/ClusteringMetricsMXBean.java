@@ -0,0 +1,44 @@
+package be.bagofwords.brown;
+
+import java.util.Map;
+
+/**
+ * Metrics of a running clustering, registered over JMX under ClusteringMetrics.OBJECT_NAME
+ */
+public interface ClusteringMetricsMXBean {
+
+    /**
+     * @return name of the innermost phase that is running, or null if no phase is running
+     */
+
+    String getCurrentPhase();
+
+    /**
+     * @return duration in milliseconds of all finished phases, in the order in which they finished
+     */
+
+    Map<String, Long> getPhaseTimes();
+
+    long getElapsedTime();
+
+    long getNumberOfScoreEvaluations();
+
+    long getNumberOfClonedMaps();
+
+    long getNumberOfMerges();
+
+    long getNumberOfSwaps();
+
+    long getUsedHeap();
+
+    long getMaxUsedHeap();
+
+    /**
+     * @return number of bytes allocated since the start of the clustering by the threads that are still alive, or -1 if the JVM does
+     * not support this
+     */
+
+    long getAllocatedBytes();
+
+    String toJson();
+}
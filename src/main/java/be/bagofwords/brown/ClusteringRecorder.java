@@ -0,0 +1,95 @@
+package be.bagofwords.brown;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Records the events of ClusteringEvents if the JVM has a flight recorder. The events extend jdk.jfr.Event, which exists from Java 11 (and
+ * Java 8u262) on, while the clustering itself only needs Java 8. This class does not refer to jdk.jfr, and ClusteringEvents is only loaded
+ * when AVAILABLE is true, so the hot paths can call this class on any JVM. Without a flight recorder, begin methods return null and end
+ * methods do nothing. Events are recorded with
+ * <pre>
+ * Object event = ClusteringRecorder.beginClusterMerge();
+ * ...
+ * ClusteringRecorder.endClusterMerge(event, smallCluster, largeCluster, numberOfPrevCounts, numberOfNextCounts);
+ * </pre>
+ * The arguments of the end methods are stored in the event only if it is recorded, so they should be cheap to compute.
+ */
+class ClusteringRecorder {
+
+    public static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+    private ClusteringRecorder() {
+    }
+
+    /**
+     * Starts a recording with the settings of ClusteringEvents.FLIGHT_RECORDER_SETTINGS. Closing the result stops the recording and writes
+     * it to file.
+     */
+
+    public static Closeable startRecording(String file) throws IOException {
+        if (!AVAILABLE) {
+            throw new RuntimeException("Can not record " + file + ", this JVM has no flight recorder (jdk.jfr)");
+        }
+        return ClusteringEvents.startRecording(file);
+    }
+
+    public static Object beginPhase() {
+        return AVAILABLE ? ClusteringEvents.beginPhase() : null;
+    }
+
+    public static void endPhase(Object event, String name) {
+        if (event != null) {
+            ClusteringEvents.endPhase(event, name);
+        }
+    }
+
+    public static Object beginFindBestCluster() {
+        return AVAILABLE ? ClusteringEvents.beginFindBestCluster() : null;
+    }
+
+    public static void endFindBestCluster(Object event, int origCluster, int bestCluster, double bestScore, int numberOfCandidates) {
+        if (event != null) {
+            ClusteringEvents.endFindBestCluster(event, origCluster, bestCluster, bestScore, numberOfCandidates);
+        }
+    }
+
+    public static Object beginScoringBatch() {
+        return AVAILABLE ? ClusteringEvents.beginScoringBatch() : null;
+    }
+
+    public static void endScoringBatch(Object event, int cluster, long numberOfScores) {
+        if (event != null) {
+            ClusteringEvents.endScoringBatch(event, cluster, numberOfScores);
+        }
+    }
+
+    public static Object beginClusterMerge() {
+        return AVAILABLE ? ClusteringEvents.beginClusterMerge() : null;
+    }
+
+    public static void endClusterMerge(Object event, int smallCluster, int largeCluster, int numberOfPrevCounts, int numberOfNextCounts) {
+        if (event != null) {
+            ClusteringEvents.endClusterMerge(event, smallCluster, largeCluster, numberOfPrevCounts, numberOfNextCounts);
+        }
+    }
+
+    public static Object beginPhraseSwap() {
+        return AVAILABLE ? ClusteringEvents.beginPhraseSwap() : null;
+    }
+
+    public static void endPhraseSwap(Object event, int iteration, int phrase, int oldCluster, int newCluster, double gain) {
+        if (event != null) {
+            ClusteringEvents.endPhraseSwap(event, iteration, phrase, oldCluster, newCluster, gain);
+        }
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, ClusteringRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError exp) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * State of a running clustering, that can be written to a checkpoint file and read again to resume the clustering. Besides the
+ * assignment of phrases to clusters and the context counts of the clusters, the state records the current step of the clustering, the
+ * position within that step and all merges of the hierarchical clustering (these determine the ClusterHistoryNode's built so far). While
+ * clusters are merged with a MergeLossTable, the table is stored as well. While phrases are swapped, the state also records the time spent
+ * swapping and the SwapWorklist, if any.
+ */
+public class ClusteringState {
+
+    public static final int MERGE_INFREQUENT_PHRASES = 0;
+    public static final int SWAP_PHRASES = 1;
+    public static final int MERGE_REMAINING_INFREQUENT_PHRASES = 2;
+    public static final int MERGE_ALL_CLUSTERS = 3;
+
+    private static final long MAGIC_NUMBER = 0x42524f574e434b50L;
+
+    private final Int2IntOpenHashMap phraseToClusterMap;
+    private final ContextCountsImpl clusterContextCounts;
+    private final IntArrayList merges; //smallCluster and largeCluster of every merge of the hierarchical clustering
+    private int step;
+    private int phrase; //next phrase to handle in the current step
+    private int iteration; //current iteration of SWAP_PHRASES
+    private int numberOfPhrasesChanged; //number of phrases swapped in the current iteration
+    private double swapGain; //total increase of the score of all phrases swapped in the current iteration
+    private long swapTime; //milliseconds spent in SWAP_PHRASES, over all iterations
+    private SwapWorklist swapWorklist; //worklist of SWAP_PHRASES, null if no worklist is used
+    private MergeLossTable mergeLossTable; //table of MERGE_ALL_CLUSTERS, null if no table was created yet
+
+    public ClusteringState(Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts) {
+        this(phraseToClusterMap, clusterContextCounts, new IntArrayList(), MERGE_INFREQUENT_PHRASES);
+    }
+
+    private ClusteringState(Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts, IntArrayList merges, int step) {
+        this.phraseToClusterMap = phraseToClusterMap;
+        this.clusterContextCounts = clusterContextCounts;
+        this.merges = merges;
+        this.step = step;
+    }
+
+    public Int2IntOpenHashMap getPhraseToClusterMap() {
+        return phraseToClusterMap;
+    }
+
+    public ContextCountsImpl getClusterContextCounts() {
+        return clusterContextCounts;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public static String getStepName(int step) {
+        switch (step) {
+            case MERGE_INFREQUENT_PHRASES:
+                return "merge infrequent phrases";
+            case SWAP_PHRASES:
+                return "swap phrases";
+            case MERGE_REMAINING_INFREQUENT_PHRASES:
+                return "merge remaining infrequent phrases";
+            case MERGE_ALL_CLUSTERS:
+                return "merge all clusters";
+            default:
+                throw new RuntimeException("Unknown step " + step);
+        }
+    }
+
+    public void startStep(int step) {
+        this.step = step;
+        this.phrase = 0;
+        this.iteration = 0;
+        this.numberOfPhrasesChanged = 0;
+        this.swapGain = 0;
+        this.swapTime = 0;
+        this.swapWorklist = null;
+    }
+
+    public int getPhrase() {
+        return phrase;
+    }
+
+    public void setPhrase(int phrase) {
+        this.phrase = phrase;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public void startNextIteration() {
+        this.iteration++;
+        this.phrase = 0;
+        this.numberOfPhrasesChanged = 0;
+        this.swapGain = 0;
+    }
+
+    public int getNumberOfPhrasesChanged() {
+        return numberOfPhrasesChanged;
+    }
+
+    public void incrementNumberOfPhrasesChanged() {
+        numberOfPhrasesChanged++;
+    }
+
+    public double getSwapGain() {
+        return swapGain;
+    }
+
+    public void addSwapGain(double gain) {
+        swapGain += gain;
+    }
+
+    public long getSwapTime() {
+        return swapTime;
+    }
+
+    public void setSwapTime(long swapTime) {
+        this.swapTime = swapTime;
+    }
+
+    public SwapWorklist getSwapWorklist() {
+        return swapWorklist;
+    }
+
+    public void setSwapWorklist(SwapWorklist swapWorklist) {
+        this.swapWorklist = swapWorklist;
+    }
+
+    public MergeLossTable getMergeLossTable() {
+        return mergeLossTable;
+    }
+
+    public void setMergeLossTable(MergeLossTable mergeLossTable) {
+        this.mergeLossTable = mergeLossTable;
+    }
+
+    public int getNumberOfMerges() {
+        return merges.size() / 2;
+    }
+
+    public int getSmallCluster(int merge) {
+        return merges.getInt(merge * 2);
+    }
+
+    public int getLargeCluster(int merge) {
+        return merges.getInt(merge * 2 + 1);
+    }
+
+    public void addMerge(int smallCluster, int largeCluster) {
+        merges.add(smallCluster);
+        merges.add(largeCluster);
+    }
+
+    /**
+     * Writes the state to file. The file is first written to a temporary file and then moved, so a crash while writing never destroys
+     * the previous checkpoint.
+     *
+     * @param fingerprint identifies the phrases and parameters of the clustering, see read()
+     */
+
+    public void writeTo(String file, long fingerprint) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        Path tmpPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath), 1 << 16))) {
+                output.writeLong(MAGIC_NUMBER);
+                output.writeLong(fingerprint);
+                output.writeInt(step);
+                output.writeInt(phrase);
+                output.writeInt(iteration);
+                output.writeInt(numberOfPhrasesChanged);
+                output.writeDouble(swapGain);
+                output.writeLong(swapTime);
+                output.writeInt(phraseToClusterMap.size());
+                ObjectIterator<Int2IntMap.Entry> iterator = phraseToClusterMap.int2IntEntrySet().fastIterator();
+                while (iterator.hasNext()) {
+                    Int2IntMap.Entry entry = iterator.next();
+                    output.writeInt(entry.getIntKey());
+                    output.writeInt(entry.getIntValue());
+                }
+                clusterContextCounts.writeTo(output);
+                output.writeInt(merges.size());
+                for (int i = 0; i < merges.size(); i++) {
+                    output.writeInt(merges.getInt(i));
+                }
+                output.writeBoolean(swapWorklist != null);
+                if (swapWorklist != null) {
+                    swapWorklist.writeTo(output);
+                }
+                output.writeBoolean(mergeLossTable != null);
+                if (mergeLossTable != null) {
+                    mergeLossTable.writeTo(output);
+                }
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * @return the state written by writeTo(), or null if file does not exist or was written with a different fingerprint
+     */
+
+    public static ClusteringState read(String file, long fingerprint) throws IOException {
+        if (!Files.exists(Paths.get(file))) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (input.readLong() != MAGIC_NUMBER) {
+                throw new RuntimeException("File " + file + " does not contain a clustering checkpoint");
+            }
+            if (input.readLong() != fingerprint) {
+                return null;
+            }
+            int step = input.readInt();
+            int phrase = input.readInt();
+            int iteration = input.readInt();
+            int numberOfPhrasesChanged = input.readInt();
+            double swapGain = input.readDouble();
+            long swapTime = input.readLong();
+            int numberOfPhrases = input.readInt();
+            Int2IntOpenHashMap phraseToClusterMap = ContextCountsUtils.createNewInt2IntMap(numberOfPhrases);
+            for (int i = 0; i < numberOfPhrases; i++) {
+                phraseToClusterMap.put(input.readInt(), input.readInt());
+            }
+            ContextCountsImpl clusterContextCounts = ContextCountsImpl.readFrom(input);
+            int numberOfMergedClusters = input.readInt();
+            IntArrayList merges = new IntArrayList(numberOfMergedClusters);
+            for (int i = 0; i < numberOfMergedClusters; i++) {
+                merges.add(input.readInt());
+            }
+            ClusteringState result = new ClusteringState(phraseToClusterMap, clusterContextCounts, merges, step);
+            result.phrase = phrase;
+            result.iteration = iteration;
+            result.numberOfPhrasesChanged = numberOfPhrasesChanged;
+            result.swapGain = swapGain;
+            result.swapTime = swapTime;
+            if (input.readBoolean()) {
+                result.swapWorklist = SwapWorklist.readFrom(input, phraseToClusterMap);
+            }
+            if (input.readBoolean()) {
+                result.mergeLossTable = MergeLossTable.readFrom(input);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable context counts of phrases, stored as sorted arrays (see SparseCountRows) instead of one hash map per phrase.
+ * <p/>
+ * The methods getPrevCounts() and getNextCounts() create a new map on every call and should be avoided in performance critical code,
+ * use getPrevRows() and getNextRows() instead.
+ * <p/>
+ * The counts can be written to a file with writeTo() and memory mapped with map(). Mapped counts are not stored on the heap, so repeated
+ * runs and parallel jobs on the same machine share the counts through the page cache.
+ */
+public class CompactContextCounts implements ContextCounts {
+
+    private static final long MAGIC_NUMBER = 0x42524f574e435458L;
+    private static final int HEADER_SIZE = 16;
+
+    private final SparseCountRows prevRows; //row = phrase, key = previous phrase
+    private final SparseCountRows nextRows; //row = phrase, key = next phrase
+    private final int grandTotal;
+
+    public CompactContextCounts(SparseCountRows prevRows, SparseCountRows nextRows) {
+        this.prevRows = prevRows;
+        this.nextRows = nextRows;
+        int total = 0;
+        for (int phrase = 0; phrase < nextRows.getNumberOfRows(); phrase++) {
+            total += nextRows.getTotal(phrase);
+        }
+        this.grandTotal = total;
+    }
+
+    /**
+     * @param bigramCounts counts of all bigrams, with keys created by SparseCountRows.packPair(firstPhrase, secondPhrase)
+     */
+
+    public static CompactContextCounts fromBigramCounts(int numberOfPhrases, Long2IntOpenHashMap bigramCounts) {
+        long[] bigrams = bigramCounts.keySet().toLongArray();
+        ParallelUtils.sort(bigrams);
+        int[] counts = new int[bigrams.length];
+        for (int ind = 0; ind < bigrams.length; ind++) {
+            counts[ind] = bigramCounts.get(bigrams[ind]);
+        }
+        SparseCountRows nextRows = SparseCountRows.fromSortedPairs(numberOfPhrases, bigrams, counts);
+        return new CompactContextCounts(nextRows.transpose(numberOfPhrases), nextRows);
+    }
+
+    /**
+     * Writes the counts to file. The file is first written to a temporary file and then moved, so concurrent jobs never map a partially
+     * written file.
+     *
+     * @param fingerprint identifies the phrases of the counts, see readFingerprint()
+     */
+
+    public void writeTo(String file, long fingerprint) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        Path tmpPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC_NUMBER);
+                header.putLong(fingerprint);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                prevRows.writeTo(channel);
+                nextRows.writeTo(channel);
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * Memory maps counts written by writeTo(). The returned counts are read-only.
+     */
+
+    public static CompactContextCounts map(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            readHeader(channel, file);
+            SparseCountRows prevRows = SparseCountRows.map(channel, HEADER_SIZE);
+            SparseCountRows nextRows = SparseCountRows.map(channel, HEADER_SIZE + prevRows.getSizeInBytes());
+            return new CompactContextCounts(prevRows, nextRows);
+        }
+    }
+
+    /**
+     * @return the fingerprint passed to writeTo(), or null if file does not exist
+     */
+
+    public static Long readFingerprint(String file) throws IOException {
+        if (!Files.exists(Paths.get(file))) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            return readHeader(channel, file);
+        }
+    }
+
+    private static long readHeader(FileChannel channel, String file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header) == -1) {
+                throw new RuntimeException("Unexpected end of file " + file);
+            }
+        }
+        header.flip();
+        if (header.getLong() != MAGIC_NUMBER) {
+            throw new RuntimeException("File " + file + " does not contain context counts");
+        }
+        return header.getLong();
+    }
+
+    public SparseCountRows getPrevRows() {
+        return prevRows;
+    }
+
+    public SparseCountRows getNextRows() {
+        return nextRows;
+    }
+
+    public int getNumberOfPhrases() {
+        return nextRows.getNumberOfRows();
+    }
+
+    @Override
+    public int getPrevTotal(int phrase) {
+        return prevRows.getTotal(phrase);
+    }
+
+    @Override
+    public int getNextTotal(int phrase) {
+        return nextRows.getTotal(phrase);
+    }
+
+    @Override
+    public int getGrandTotal() {
+        return grandTotal;
+    }
+
+    @Override
+    public IntStream getAllClusters() {
+        return IntStream.range(0, getNumberOfPhrases()).filter(phrase -> getPrevTotal(phrase) > 0 || getNextTotal(phrase) > 0);
+    }
+
+    @Override
+    public Int2IntOpenHashMap getPrevCounts(int phrase) {
+        return toMap(prevRows, phrase);
+    }
+
+    @Override
+    public Int2IntOpenHashMap getNextCounts(int phrase) {
+        return toMap(nextRows, phrase);
+    }
+
+    /**
+     * @return mutable counts where every phrase is assigned to its own cluster
+     */
+
+    public ContextCountsImpl toContextCountsImpl() {
+        Map<Integer, Int2IntOpenHashMap> prevCounts = new HashMap<>();
+        Map<Integer, Int2IntOpenHashMap> nextCounts = new HashMap<>();
+        for (int phrase = 0; phrase < getNumberOfPhrases(); phrase++) {
+            prevCounts.put(phrase, toMap(prevRows, phrase));
+            nextCounts.put(phrase, toMap(nextRows, phrase));
+        }
+        return new ContextCountsImpl(prevCounts, nextCounts);
+    }
+
+    private Int2IntOpenHashMap toMap(SparseCountRows rows, int phrase) {
+        int start = rows.getStart(phrase);
+        int end = rows.getEnd(phrase);
+        Int2IntOpenHashMap result = ContextCountsUtils.createNewInt2IntMap(end - start);
+        for (int ind = start; ind < end; ind++) {
+            result.put(rows.getKeyAt(ind), rows.getCountAt(ind));
+        }
+        return result;
+    }
+}
@@ -2,7 +2,8 @@ package be.bagofwords.brown;
 
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /**
  * Created by Koen Deschacht (koendeschacht@gmail.com) on 03/12/14.
@@ -15,9 +16,54 @@ public interface ContextCounts {
 
     int getGrandTotal();
 
-    Set<Integer> getAllClusters();
+    /**
+     * @return all clusters with a non-zero prev or next total
+     */
+
+    IntStream getAllClusters();
 
     Int2IntOpenHashMap getPrevCounts(int cluster);
 
     Int2IntOpenHashMap getNextCounts(int cluster);
+
+    /**
+     * @return table with the logarithms that are used to compute the scores of these counts, or null if the scores are computed with
+     * Math.log()
+     */
+
+    default LogTable getLogTable() {
+        return null;
+    }
+
+    /**
+     * @return counter of the maps that are cloned by (views of) these counts, or null if clones are not counted
+     */
+
+    default LongAdder getClonedMapsCounter() {
+        return null;
+    }
+
+    /**
+     * @return natural logarithm of getPrevTotal(cluster), implementations can cache this value
+     */
+
+    default double getLogPrevTotal(int cluster) {
+        return MutualInformationUtils.log(getPrevTotal(cluster), getLogTable());
+    }
+
+    /**
+     * @return natural logarithm of getNextTotal(cluster), implementations can cache this value
+     */
+
+    default double getLogNextTotal(int cluster) {
+        return MutualInformationUtils.log(getNextTotal(cluster), getLogTable());
+    }
+
+    /**
+     * @return MutualInformationUtils.computeSK() of cluster, implementations can cache this value
+     */
+
+    default double getSk(int cluster) {
+        return MutualInformationUtils.computeSK(cluster, this);
+    }
 }
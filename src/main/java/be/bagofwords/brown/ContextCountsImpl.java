@@ -2,11 +2,16 @@ package be.bagofwords.brown;
 
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /**
  * Created by Koen Deschacht (koendeschacht@gmail.com) on 03/12/14.
@@ -18,11 +23,25 @@ public class ContextCountsImpl implements ContextCounts {
     private Int2IntOpenHashMap prevTotals;
     private Int2IntOpenHashMap nextTotals;
     private int grandTotal;
+    private ActiveClusters activeClusters; //clusters with a non-zero prev or next total
+    //computeSK() of every cluster, or NaN if it has to be computed again
+    private double[] cachedSk;
+    //logarithms of the prev and next totals, or NaN if they have to be computed again
+    private double[] cachedLogPrevTotals;
+    private double[] cachedLogNextTotals;
+    private int cachedSkGrandTotal;
+    //clusters whose prev (next) total was changed by addBigramCount() since the cached values were last checked, with their old total
+    private final Int2IntOpenHashMap changedPrevTotals = ContextCountsUtils.createNewInt2IntMap();
+    private final Int2IntOpenHashMap changedNextTotals = ContextCountsUtils.createNewInt2IntMap();
+    private volatile boolean hasChangedTotals;
+    private LogTable logTable;
+    private LongAdder clonedMapsCounter;
 
     public ContextCountsImpl(Map<Integer, Int2IntOpenHashMap> prevCounts, Map<Integer, Int2IntOpenHashMap> nextCounts) {
         this.prevCounts = prevCounts;
         this.nextCounts = nextCounts;
         computeTotals();
+        initializeCachedValues();
         if (BrownClustering.DO_TESTS) {
             checkCountsConsistent();
         }
@@ -43,48 +62,250 @@ public class ContextCountsImpl implements ContextCounts {
         return grandTotal;
     }
 
+    @Override
+    public LogTable getLogTable() {
+        return logTable;
+    }
+
+    /**
+     * If not null, the scores of these counts are computed with the logarithms of logTable instead of Math.log(). The scores differ by
+     * rounding errors only (see MutualInformationUtils.LOG_TABLE_TOLERANCE).
+     */
+
+    public void setLogTable(LogTable logTable) {
+        this.logTable = logTable;
+        invalidateCachedValues();
+    }
+
+    @Override
+    public LongAdder getClonedMapsCounter() {
+        return clonedMapsCounter;
+    }
+
+    /**
+     * Counts the maps cloned by these counts, by their clones and by the MergedContextCounts and SwapWordContextCounts that wrap them
+     */
+
+    public void setClonedMapsCounter(LongAdder clonedMapsCounter) {
+        this.clonedMapsCounter = clonedMapsCounter;
+    }
+
+    @Override
+    public double getLogPrevTotal(int cluster) {
+        return getCachedLog(cachedLogPrevTotals, cluster, prevTotals);
+    }
+
+    @Override
+    public double getLogNextTotal(int cluster) {
+        return getCachedLog(cachedLogNextTotals, cluster, nextTotals);
+    }
+
+    private double getCachedLog(double[] cachedLogs, int cluster, Int2IntOpenHashMap totals) {
+        if (cluster < 0 || cluster >= cachedLogs.length) {
+            return MutualInformationUtils.log(totals.get(cluster), logTable);
+        }
+        double log = cachedLogs[cluster];
+        if (Double.isNaN(log)) {
+            log = MutualInformationUtils.log(totals.get(cluster), logTable);
+            cachedLogs[cluster] = log;
+        }
+        return log;
+    }
+
+    /**
+     * Same as MutualInformationUtils.computeSK(), but the result is cached until the counts of the cluster, the totals of one of its
+     * neighbours or the grand total change. Can be called concurrently, but not at the same time as methods that modify the counts.
+     */
+
+    @Override
+    public double getSk(int cluster) {
+        if (hasChangedTotals) {
+            invalidateSkOfChangedTotals();
+        }
+        if (cluster < 0 || cluster >= cachedSk.length) {
+            return MutualInformationUtils.computeSK(cluster, this);
+        }
+        double sk = cachedSk[cluster];
+        if (Double.isNaN(sk)) {
+            sk = MutualInformationUtils.computeSK(cluster, this);
+            cachedSk[cluster] = sk;
+        } else if (BrownClustering.DO_TESTS) {
+            double expectedSk = MutualInformationUtils.computeSK(cluster, this);
+            if (sk != expectedSk) {
+                throw new RuntimeException("Cached sk " + sk + " of cluster " + cluster + " differs from " + expectedSk);
+            }
+        }
+        return sk;
+    }
+
+    private void initializeCachedValues() {
+        int maxCluster = -1;
+        for (Integer cluster : prevCounts.keySet()) {
+            maxCluster = Math.max(maxCluster, cluster);
+        }
+        for (Integer cluster : nextCounts.keySet()) {
+            maxCluster = Math.max(maxCluster, cluster);
+        }
+        cachedSk = new double[maxCluster + 1];
+        cachedLogPrevTotals = new double[maxCluster + 1];
+        cachedLogNextTotals = new double[maxCluster + 1];
+        invalidateCachedValues();
+    }
+
+    private void invalidateCachedValues() {
+        Arrays.fill(cachedSk, Double.NaN);
+        Arrays.fill(cachedLogPrevTotals, Double.NaN);
+        Arrays.fill(cachedLogNextTotals, Double.NaN);
+        cachedSkGrandTotal = grandTotal;
+        changedPrevTotals.clear();
+        changedNextTotals.clear();
+        hasChangedTotals = false;
+    }
+
+    private void invalidateSk(int cluster) {
+        if (cluster >= 0 && cluster < cachedSk.length) {
+            cachedSk[cluster] = Double.NaN;
+        }
+    }
+
+    private void invalidateLogTotals(int cluster) {
+        if (cluster >= 0 && cluster < cachedSk.length) {
+            cachedLogPrevTotals[cluster] = Double.NaN;
+            cachedLogNextTotals[cluster] = Double.NaN;
+        }
+    }
+
+    /**
+     * Invalidates the sk of all clusters in counts, i.e. of all neighbours of the cluster that has these counts
+     */
+
+    private void invalidateSk(Int2IntOpenHashMap counts) {
+        if (counts != null) {
+            ObjectIterator<Int2IntMap.Entry> iterator = counts.int2IntEntrySet().fastIterator();
+            while (iterator.hasNext()) {
+                invalidateSk(iterator.next().getIntKey());
+            }
+        }
+    }
+
+    /**
+     * The next (prev) total of a cluster is used in the sk of all clusters that follow (precede) it. Moving a phrase with
+     * addBigramCount() changes the totals of many clusters temporarily, but only the totals of the old and new cluster of the phrase
+     * actually change. The neighbours are therefore invalidated when the sk is needed again, and only if the total did change.
+     */
+
+    private synchronized void invalidateSkOfChangedTotals() {
+        if (hasChangedTotals) {
+            if (grandTotal != cachedSkGrandTotal) {
+                invalidateCachedValues();
+            } else {
+                invalidateSkOfChangedTotals(changedNextTotals, nextTotals, nextCounts);
+                invalidateSkOfChangedTotals(changedPrevTotals, prevTotals, prevCounts);
+                hasChangedTotals = false;
+            }
+        }
+    }
+
+    private void invalidateSkOfChangedTotals(Int2IntOpenHashMap changedTotals, Int2IntOpenHashMap totals, Map<Integer, Int2IntOpenHashMap> counts) {
+        ObjectIterator<Int2IntMap.Entry> iterator = changedTotals.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            if (totals.get(entry.getIntKey()) != entry.getIntValue()) {
+                invalidateSk(counts.get(entry.getIntKey()));
+            }
+        }
+        changedTotals.clear();
+    }
+
 
     private void computeTotals() {
         prevTotals = ContextCountsUtils.computeMapTotals(prevCounts);
         nextTotals = ContextCountsUtils.computeMapTotals(nextCounts);
         grandTotal = ContextCountsUtils.getTotal(nextTotals);
+        activeClusters = new ActiveClusters(Math.max(prevTotals.size(), nextTotals.size()));
+        for (Integer cluster : prevTotals.keySet()) {
+            updateActiveCluster(cluster);
+        }
+        for (Integer cluster : nextTotals.keySet()) {
+            updateActiveCluster(cluster);
+        }
+    }
+
+    private void updateActiveCluster(int cluster) {
+        if (prevTotals.get(cluster) > 0 || nextTotals.get(cluster) > 0) {
+            activeClusters.add(cluster);
+        } else {
+            activeClusters.remove(cluster);
+        }
     }
 
     public void mergeClusters(int smallCluster, int largeCluster) {
-        mergeCounts(smallCluster, largeCluster, prevCounts);
-        mergeCounts(smallCluster, largeCluster, nextCounts);
+        Object event = ClusteringRecorder.beginClusterMerge();
+        renameCluster(smallCluster, largeCluster);
         prevTotals.put(largeCluster, prevTotals.get(largeCluster) + prevTotals.remove(smallCluster));
         nextTotals.put(largeCluster, nextTotals.get(largeCluster) + nextTotals.remove(smallCluster));
+        activeClusters.remove(smallCluster);
+        updateActiveCluster(largeCluster);
+        //all neighbours of smallCluster are now neighbours of largeCluster
+        invalidateSk(smallCluster);
+        invalidateSk(largeCluster);
+        invalidateLogTotals(smallCluster);
+        invalidateLogTotals(largeCluster);
+        invalidateSk(prevCounts.get(largeCluster));
+        invalidateSk(nextCounts.get(largeCluster));
+        if (event != null) {
+            ClusteringRecorder.endClusterMerge(event, smallCluster, largeCluster, returnResultOrEmpty(prevCounts.get(largeCluster)).size(), returnResultOrEmpty(nextCounts.get(largeCluster)).size());
+        }
         if (BrownClustering.DO_TESTS) {
             checkCountsConsistent();
         }
     }
 
-    protected void mergeCounts(int smallCluster, int largeCluster, Map<Integer, Int2IntOpenHashMap> counts) {
-        //step 1: merge counts from small cluster to large cluster
-        Int2IntOpenHashMap countsSmallCluster = counts.remove(smallCluster);
-        Int2IntOpenHashMap countsLargeCluster = counts.get(largeCluster);
-        if (countsLargeCluster == null) {
-            countsLargeCluster = ContextCountsUtils.createNewInt2IntMap();
-            counts.put(largeCluster, countsLargeCluster);
-        }
-        for (Int2IntOpenHashMap.Entry entry : countsSmallCluster.int2IntEntrySet()) {
+    /**
+     * Moves all counts of smallCluster to largeCluster. Since prevCounts and nextCounts mirror each other, the clusters that have
+     * smallCluster in their prev (next) counts are exactly the keys of the next (prev) counts of smallCluster, so only these clusters
+     * are visited.
+     */
+
+    private void renameCluster(int smallCluster, int largeCluster) {
+        Int2IntOpenHashMap prevCountsSmallCluster = returnResultOrEmpty(prevCounts.remove(smallCluster));
+        Int2IntOpenHashMap nextCountsSmallCluster = returnResultOrEmpty(nextCounts.remove(smallCluster));
+        mergeCounts(prevCountsSmallCluster, getOrCreateCounts(prevCounts, largeCluster));
+        mergeCounts(nextCountsSmallCluster, getOrCreateCounts(nextCounts, largeCluster));
+        replaceKey(smallCluster, largeCluster, nextCountsSmallCluster, prevCounts);
+        replaceKey(smallCluster, largeCluster, prevCountsSmallCluster, nextCounts);
+    }
+
+    private void mergeCounts(Int2IntOpenHashMap countsSmallCluster, Int2IntOpenHashMap countsLargeCluster) {
+        ObjectIterator<Int2IntMap.Entry> iterator = countsSmallCluster.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
             countsLargeCluster.addTo(entry.getIntKey(), entry.getIntValue());
         }
-        //step 2: update all occurrences of small cluster to the large cluster
-        counts.values().parallelStream().forEach(countsForSingleCluster -> {
-            int prevCountsSmallCluster = countsForSingleCluster.remove(smallCluster);
-            if (prevCountsSmallCluster > 0) {
-                countsForSingleCluster.addTo(largeCluster, prevCountsSmallCluster);
-            }
-        });
     }
 
+    /**
+     * Replace smallCluster by largeCluster in the counts of all neighbours of smallCluster
+     */
+
+    private void replaceKey(int smallCluster, int largeCluster, Int2IntOpenHashMap neighbours, Map<Integer, Int2IntOpenHashMap> counts) {
+        ObjectIterator<Int2IntMap.Entry> iterator = neighbours.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            int neighbour = iterator.next().getIntKey();
+            //the counts of smallCluster itself were already moved to largeCluster
+            Int2IntOpenHashMap countsOfNeighbour = counts.get(neighbour == smallCluster ? largeCluster : neighbour);
+            int countsSmallCluster = countsOfNeighbour.remove(smallCluster);
+            if (countsSmallCluster > 0) {
+                countsOfNeighbour.addTo(largeCluster, countsSmallCluster);
+            }
+        }
+    }
 
     public void removeCounts(ContextCountsImpl contextCounts) {
         int added = addCounts(prevCounts, contextCounts.prevCounts, prevTotals, -1);
         grandTotal -= added;
         addCounts(nextCounts, contextCounts.nextCounts, nextTotals, -1);
+        invalidateCachedValues();
         if (BrownClustering.DO_TESTS) {
             checkCountsConsistent();
         }
@@ -94,11 +315,48 @@ public class ContextCountsImpl implements ContextCounts {
         int added = addCounts(prevCounts, contextCounts.prevCounts, prevTotals, 1);
         grandTotal += added;
         addCounts(nextCounts, contextCounts.nextCounts, nextTotals, 1);
+        invalidateCachedValues();
         if (BrownClustering.DO_TESTS) {
             checkCountsConsistent();
         }
     }
 
+    /**
+     * Add count (possibly negative) to the number of times firstCluster is followed by secondCluster
+     */
+
+    public void addBigramCount(int firstCluster, int secondCluster, int count) {
+        if (count != 0) {
+            addCountOrRemove(getOrCreateCounts(nextCounts, firstCluster), secondCluster, count);
+            addCountOrRemove(getOrCreateCounts(prevCounts, secondCluster), firstCluster, count);
+            if (!changedNextTotals.containsKey(firstCluster)) {
+                changedNextTotals.put(firstCluster, nextTotals.get(firstCluster));
+            }
+            if (!changedPrevTotals.containsKey(secondCluster)) {
+                changedPrevTotals.put(secondCluster, prevTotals.get(secondCluster));
+            }
+            nextTotals.addTo(firstCluster, count);
+            prevTotals.addTo(secondCluster, count);
+            grandTotal += count;
+            updateActiveCluster(firstCluster);
+            updateActiveCluster(secondCluster);
+            invalidateSk(firstCluster);
+            invalidateSk(secondCluster);
+            invalidateLogTotals(firstCluster);
+            invalidateLogTotals(secondCluster);
+            hasChangedTotals = true;
+        }
+    }
+
+    private Int2IntOpenHashMap getOrCreateCounts(Map<Integer, Int2IntOpenHashMap> counts, int cluster) {
+        Int2IntOpenHashMap result = counts.get(cluster);
+        if (result == null) {
+            result = ContextCountsUtils.createNewInt2IntMap();
+            counts.put(cluster, result);
+        }
+        return result;
+    }
+
     private int addCounts(Map<Integer, Int2IntOpenHashMap> counts, Map<Integer, Int2IntOpenHashMap> countsToAdd, Int2IntOpenHashMap totals, int sign) {
         int total = 0;
         for (Map.Entry<Integer, Int2IntOpenHashMap> entry : countsToAdd.entrySet()) {
@@ -109,6 +367,7 @@ public class ContextCountsImpl implements ContextCounts {
             }
             int added = addCountsSingleMap(countsForKey, entry.getValue(), sign);
             totals.addTo(entry.getKey(), added * sign);
+            updateActiveCluster(entry.getKey());
             total += added;
         }
         return total;
@@ -132,33 +391,79 @@ public class ContextCountsImpl implements ContextCounts {
         return getNumberOfClusters(); //same thing, depending on context
     }
 
-    public Set<Integer> getAllClusters() {
-        Set<Integer> result = new HashSet<>();
-        addNonZero(result, prevTotals);
-        addNonZero(result, nextTotals);
-        return result;
+    @Override
+    public IntStream getAllClusters() {
+        return activeClusters.stream();
     }
 
-    protected void addNonZero(Set<Integer> result, Int2IntOpenHashMap totals) {
-        for (Int2IntMap.Entry entry : totals.int2IntEntrySet()) {
-            if (entry.getIntValue() > 0) {
-                result.add(entry.getIntKey());
-            }
-        }
+    public ActiveClusters getActiveClusters() {
+        return activeClusters;
     }
 
-    public Set<Integer> getAllPhrases() {
+    public IntStream getAllPhrases() {
         return getAllClusters(); //same thing, depending on context
     }
 
     public ContextCountsImpl clone() {
-        return new ContextCountsImpl(deepClone(prevCounts), deepClone(nextCounts));
+        ContextCountsImpl result = new ContextCountsImpl(deepClone(prevCounts), deepClone(nextCounts));
+        result.logTable = logTable;
+        result.clonedMapsCounter = clonedMapsCounter;
+        return result;
     }
 
     private Map<Integer, Int2IntOpenHashMap> deepClone(Map<Integer, Int2IntOpenHashMap> map) {
         Map<Integer, Int2IntOpenHashMap> result = new HashMap<>();
         for (Map.Entry<Integer, Int2IntOpenHashMap> entry : map.entrySet()) {
-            result.put(entry.getKey(), entry.getValue().clone());
+            result.put(entry.getKey(), ContextCountsUtils.cloneMap(entry.getValue(), clonedMapsCounter));
+        }
+        return result;
+    }
+
+    /**
+     * Writes the prev and next counts of all clusters. Empty counts are written as well, so the counts read by readFrom() have exactly
+     * the same clusters.
+     */
+
+    public void writeTo(DataOutputStream output) throws IOException {
+        writeCounts(prevCounts, output);
+        writeCounts(nextCounts, output);
+    }
+
+    /**
+     * Reads counts written by writeTo()
+     */
+
+    public static ContextCountsImpl readFrom(DataInputStream input) throws IOException {
+        Map<Integer, Int2IntOpenHashMap> prevCounts = readCounts(input);
+        Map<Integer, Int2IntOpenHashMap> nextCounts = readCounts(input);
+        return new ContextCountsImpl(prevCounts, nextCounts);
+    }
+
+    private static void writeCounts(Map<Integer, Int2IntOpenHashMap> counts, DataOutputStream output) throws IOException {
+        output.writeInt(counts.size());
+        for (Map.Entry<Integer, Int2IntOpenHashMap> entry : counts.entrySet()) {
+            output.writeInt(entry.getKey());
+            output.writeInt(entry.getValue().size());
+            ObjectIterator<Int2IntMap.Entry> iterator = entry.getValue().int2IntEntrySet().fastIterator();
+            while (iterator.hasNext()) {
+                Int2IntMap.Entry countEntry = iterator.next();
+                output.writeInt(countEntry.getIntKey());
+                output.writeInt(countEntry.getIntValue());
+            }
+        }
+    }
+
+    private static Map<Integer, Int2IntOpenHashMap> readCounts(DataInputStream input) throws IOException {
+        int numberOfClusters = input.readInt();
+        Map<Integer, Int2IntOpenHashMap> result = new HashMap<>(numberOfClusters);
+        for (int i = 0; i < numberOfClusters; i++) {
+            int cluster = input.readInt();
+            int size = input.readInt();
+            Int2IntOpenHashMap countsOfCluster = ContextCountsUtils.createNewInt2IntMap(size);
+            for (int j = 0; j < size; j++) {
+                countsOfCluster.put(input.readInt(), input.readInt());
+            }
+            result.put(cluster, countsOfCluster);
         }
         return result;
     }
@@ -191,6 +496,18 @@ public class ContextCountsImpl implements ContextCounts {
         }
     }
 
+    /**
+     * Same as addCount(), but removes the key when the count drops to zero, so that the keys of prevCounts and nextCounts only
+     * contain actual neighbours
+     */
+
+    private void addCountOrRemove(Int2IntOpenHashMap currentCounts, int key, int value) {
+        addCount(currentCounts, key, value);
+        if (currentCounts.get(key) == 0) {
+            currentCounts.remove(key);
+        }
+    }
+
     private void checkCountsConsistent() {
         if (ContextCountsUtils.getTotal(prevCounts) != ContextCountsUtils.getTotal(prevTotals) || ContextCountsUtils.getTotal(prevTotals) != grandTotal) {
             throw new RuntimeException("Inconsistent prev counts!");
@@ -221,31 +538,15 @@ public class ContextCountsImpl implements ContextCounts {
 
     public ContextCountsImpl mapCluster(int oldCluster, int newCluster) {
         ContextCountsImpl result = clone();
-        mapCluster(result.prevCounts, oldCluster, newCluster);
-        mapCluster(result.nextCounts, oldCluster, newCluster);
+        result.renameCluster(oldCluster, newCluster);
         result.prevTotals.addTo(newCluster, result.prevTotals.remove(oldCluster));
         result.nextTotals.addTo(newCluster, result.nextTotals.remove(oldCluster));
+        result.activeClusters.remove(oldCluster);
+        result.updateActiveCluster(newCluster);
+        result.invalidateCachedValues();
         if (BrownClustering.DO_TESTS) {
             result.checkCountsConsistent();
         }
         return result;
     }
-
-    private void mapCluster(Map<Integer, Int2IntOpenHashMap> counts, int oldCluster, int newCluster) {
-        Int2IntOpenHashMap mapOldCluster = counts.remove(oldCluster);
-        if (mapOldCluster != null) {
-            Int2IntOpenHashMap mapNewCluster = counts.get(newCluster);
-            if (mapNewCluster == null) {
-                counts.put(newCluster, mapOldCluster);
-            } else {
-                //merge maps
-                for (Map.Entry<Integer, Integer> entry : mapOldCluster.entrySet()) {
-                    mapNewCluster.add(entry.getKey(), entry.getValue());
-                }
-            }
-        }
-        for (Int2IntOpenHashMap currMap : counts.values()) {
-            currMap.addTo(newCluster, currMap.remove(oldCluster));
-        }
-    }
 }
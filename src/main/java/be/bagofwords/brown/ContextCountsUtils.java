@@ -5,6 +5,7 @@ import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -12,16 +13,27 @@ import java.util.stream.Collectors;
  */
 public class ContextCountsUtils {
 
-    public static ContextCountsImpl computeContextCounts(ContextCountsImpl phraseContextCounts, Int2IntOpenHashMap phraseToClusterMap) {
+    /**
+     * Same as counts.clone(), but also increments clonedMapsCounter if it is not null (see ContextCounts.getClonedMapsCounter())
+     */
+
+    public static Int2IntOpenHashMap cloneMap(Int2IntOpenHashMap counts, LongAdder clonedMapsCounter) {
+        if (clonedMapsCounter != null) {
+            clonedMapsCounter.increment();
+        }
+        return counts.clone();
+    }
+
+    public static ContextCountsImpl computeContextCounts(ContextCounts phraseContextCounts, Int2IntOpenHashMap phraseToClusterMap) {
         Map<Integer, Int2IntOpenHashMap> prevCounts = new HashMap<>();
         Map<Integer, Int2IntOpenHashMap> nextCounts = new HashMap<>();
-        for (Integer phrase : phraseContextCounts.getAllPhrases()) {
+        phraseContextCounts.getAllClusters().forEach(phrase -> {
             Integer cluster = phraseToClusterMap.get(phrase);
             Int2IntOpenHashMap prevCountsForPhrase = phraseContextCounts.getPrevCounts(phrase);
             addCounts(phraseToClusterMap, prevCounts, cluster, prevCountsForPhrase);
             Int2IntOpenHashMap nextCountsForPhrase = phraseContextCounts.getNextCounts(phrase);
             addCounts(phraseToClusterMap, nextCounts, cluster, nextCountsForPhrase);
-        }
+        });
         return new ContextCountsImpl(prevCounts, nextCounts);
     }
 
@@ -68,12 +80,12 @@ public class ContextCountsUtils {
         return counts.values().stream().flatMap(map -> map.values().stream()).collect(Collectors.summingInt(i -> i));
     }
 
-    public static void checkCounts(ContextCountsImpl clusterContextCounts, Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl phraseContextCounts) {
+    public static void checkCounts(ContextCountsImpl clusterContextCounts, Int2IntOpenHashMap phraseToClusterMap, ContextCounts phraseContextCounts) {
         ContextCounts computedContextCounts = ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap);
-        for (Integer cluster : clusterContextCounts.getAllClusters()) {
+        clusterContextCounts.getAllClusters().forEach(cluster -> {
             compare(clusterContextCounts.getPrevCounts(cluster), computedContextCounts.getPrevCounts(cluster));
             compare(clusterContextCounts.getNextCounts(cluster), computedContextCounts.getNextCounts(cluster));
-        }
+        });
     }
 
     private static void compare(Int2IntOpenHashMap counts1, Int2IntOpenHashMap counts2) {
@@ -0,0 +1,216 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Splits a UTF-8 encoded text file in phrases by scanning the bytes of the memory mapped file, without decoding the file to Strings.
+ * <p/>
+ * Accepts exactly the phrases of the original reader, i.e. line.toLowerCase().split("\\s") followed by word.matches("\\w+"): phrases are
+ * separated by ASCII whitespace and only contain (lowercased) ASCII letters, digits and underscores. The only non ASCII character that
+ * is lowercased to an ASCII word character is the Kelvin sign (U+212A), which becomes 'k'. All other phrases containing non ASCII
+ * characters are dropped. The original reader decodes the file with the default charset, so this only holds if that charset is UTF-8.
+ */
+public class CorpusTokenizer {
+
+    private static final int MAX_REGION_SIZE = 1 << 30;
+    private static final int MIN_CHUNK_SIZE = 1 << 23;
+    private static final int SCAN_WINDOW_SIZE = 1 << 16;
+    private static final byte NO_WORD_CHARACTER = 0;
+    //lowercased value of every word character, NO_WORD_CHARACTER for all other bytes
+    private static final byte[] WORD_CHARACTERS = createWordCharacters();
+
+    private byte[] token = new byte[64];
+    private int tokenLength;
+    private boolean tokenIsValid;
+
+    /**
+     * Calls handler for all phrases of inputFile. Files larger than 1GB are mapped in several regions, which always end at the end of a line.
+     */
+
+    public void tokenize(String inputFile, TokenHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            long[] regionStarts = findChunkStarts(channel, MAX_REGION_SIZE);
+            for (int region = 0; region < regionStarts.length - 1; region++) {
+                tokenize(channel, regionStarts[region], regionStarts[region + 1], handler);
+            }
+        }
+    }
+
+    /**
+     * Splits inputFile in chunks that end at the end of a line and tokenizes the chunks in parallel, every chunk with a new handler. The
+     * handlers are then combined pairwise, in a tree. combine(first, second) is always called with handlers of consecutive parts of the file,
+     * where first precedes second, so the result can depend on the order of the phrases in the file.
+     */
+
+    public static <T extends TokenHandler> T tokenizeInParallel(String inputFile, Supplier<T> createHandler, BinaryOperator<T> combine) throws IOException {
+        return tokenizeInParallel(inputFile, MIN_CHUNK_SIZE, createHandler, combine);
+    }
+
+    /**
+     * @param minChunkSize lower bound of the size of the chunks, before they are shortened to end at a line break
+     */
+
+    static <T extends TokenHandler> T tokenizeInParallel(String inputFile, long minChunkSize, Supplier<T> createHandler, BinaryOperator<T> combine) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ)) {
+            long chunkSize = Math.min(MAX_REGION_SIZE, Math.max(minChunkSize, channel.size() / (4 * ParallelUtils.getParallelism())));
+            long[] chunkStarts = findChunkStarts(channel, chunkSize);
+            try {
+                T result = ParallelUtils.mapReduce(0, chunkStarts.length - 1, chunk -> {
+                    T handler = createHandler.get();
+                    try {
+                        new CorpusTokenizer().tokenize(channel, chunkStarts[chunk], chunkStarts[chunk + 1], handler);
+                    } catch (IOException exp) {
+                        throw new UncheckedIOException(exp);
+                    }
+                    return handler;
+                }, combine);
+                return result != null ? result : createHandler.get();
+            } catch (UncheckedIOException exp) {
+                throw exp.getCause();
+            }
+        }
+    }
+
+    private void tokenize(FileChannel channel, long start, long end, TokenHandler handler) throws IOException {
+        if (end - start > MAX_REGION_SIZE) {
+            throw new RuntimeException("Line ending at position " + end + " is longer than " + MAX_REGION_SIZE + " bytes!");
+        }
+        if (end > start) {
+            tokenize(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), (int) (end - start), handler);
+        }
+    }
+
+    /**
+     * @return start positions of chunks of at most chunkSize bytes (unless a single line is longer), where every chunk except the last one
+     * ends with a line break. The last element is the size of the file.
+     */
+
+    private static long[] findChunkStarts(FileChannel channel, long chunkSize) throws IOException {
+        long size = channel.size();
+        LongArrayList chunkStarts = new LongArrayList();
+        long start = 0;
+        while (start < size) {
+            chunkStarts.add(start);
+            long end = Math.min(start + chunkSize, size);
+            if (end < size) {
+                long endOfLine = findEndOfLastLine(channel, start, end);
+                end = endOfLine > start ? endOfLine : findEndOfNextLine(channel, end);
+            }
+            start = end;
+        }
+        chunkStarts.add(size);
+        return chunkStarts.toLongArray();
+    }
+
+    /**
+     * @return the position after the last line break in [start, end), or start if there is no line break
+     */
+
+    private static long findEndOfLastLine(FileChannel channel, long start, long end) throws IOException {
+        long windowEnd = end;
+        while (windowEnd > start) {
+            int windowSize = (int) Math.min(SCAN_WINDOW_SIZE, windowEnd - start);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd - windowSize, windowSize);
+            for (int ind = windowSize - 1; ind >= 0; ind--) {
+                if (isLineBreak(window.get(ind))) {
+                    return windowEnd - windowSize + ind + 1;
+                }
+            }
+            windowEnd -= windowSize;
+        }
+        return start;
+    }
+
+    /**
+     * @return the position after the first line break at or after start, or the size of the file if there is no line break
+     */
+
+    private static long findEndOfNextLine(FileChannel channel, long start) throws IOException {
+        long size = channel.size();
+        long windowStart = start;
+        while (windowStart < size) {
+            int windowSize = (int) Math.min(SCAN_WINDOW_SIZE, size - windowStart);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowSize);
+            for (int ind = 0; ind < windowSize; ind++) {
+                if (isLineBreak(window.get(ind))) {
+                    return windowStart + ind + 1;
+                }
+            }
+            windowStart += windowSize;
+        }
+        return size;
+    }
+
+    private static boolean isLineBreak(byte value) {
+        return value == '\n' || value == '\r';
+    }
+
+    private void tokenize(MappedByteBuffer buffer, int end, TokenHandler handler) {
+        tokenLength = 0;
+        tokenIsValid = true;
+        for (int position = 0; position < end; position++) {
+            byte value = buffer.get(position);
+            if (value == ' ' || value == '\t' || value == 0x0B || value == '\f') {
+                endOfToken(handler);
+            } else if (isLineBreak(value)) {
+                endOfToken(handler);
+                handler.handleEndOfLine();
+            } else if (tokenIsValid) {
+                byte wordCharacter = WORD_CHARACTERS[value & 0xFF];
+                if (wordCharacter != NO_WORD_CHARACTER) {
+                    append(wordCharacter);
+                } else if (isKelvinSign(buffer, position, end)) {
+                    append((byte) 'k');
+                    position += 2;
+                } else {
+                    tokenIsValid = false;
+                }
+            }
+        }
+        endOfToken(handler);
+        handler.handleEndOfLine();
+    }
+
+    private void endOfToken(TokenHandler handler) {
+        if (tokenIsValid && tokenLength > 0) {
+            handler.handleToken(token, tokenLength);
+        }
+        tokenLength = 0;
+        tokenIsValid = true;
+    }
+
+    private void append(byte value) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[tokenLength++] = value;
+    }
+
+    private static boolean isKelvinSign(MappedByteBuffer buffer, int position, int end) {
+        //UTF-8 encoding of U+212A is E2 84 AA
+        return position + 2 < end && buffer.get(position) == (byte) 0xE2 && buffer.get(position + 1) == (byte) 0x84 && buffer.get(position + 2) == (byte) 0xAA;
+    }
+
+    private static byte[] createWordCharacters() {
+        byte[] result = new byte[256];
+        for (char c = 'a'; c <= 'z'; c++) {
+            result[c] = (byte) c;
+            result[Character.toUpperCase(c)] = (byte) c;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            result[c] = (byte) c;
+        }
+        result['_'] = (byte) '_';
+        return result;
+    }
+}
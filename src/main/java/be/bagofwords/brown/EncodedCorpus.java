@@ -0,0 +1,135 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tokenized corpus, stored in two files so that the text does not need to be parsed again when the clustering is run with different
+ * parameters:
+ * <ul>
+ * <li>[name].vocabulary: all phrases with their counts, in the order of their first occurrence (see Vocabulary.writeTo())</li>
+ * <li>[name].phrases: the index in the vocabulary of every phrase of the corpus, stored as index + 1 with a variable length encoding
+ * (7 bits per byte, the highest bit is set on all bytes except the last one). A 0 marks the end of a line.</li>
+ * </ul>
+ */
+public class EncodedCorpus {
+
+    private static final int MAX_REGION_SIZE = 1 << 30;
+    private static final int END_OF_LINE = 0;
+
+    /**
+     * Tokenizes inputFile with CorpusTokenizer and writes the encoded corpus
+     */
+
+    public static void encode(String inputFile, String encodedCorpus) throws IOException {
+        Vocabulary vocabulary = new Vocabulary();
+        try (OutputStream phrasesOutput = new BufferedOutputStream(new FileOutputStream(getPhrasesFile(encodedCorpus)), 1 << 16)) {
+            new CorpusTokenizer().tokenize(inputFile, new TokenHandler() {
+
+                private boolean lineIsEmpty = true;
+
+                @Override
+                public void handleToken(byte[] token, int length) {
+                    writeVarInt(phrasesOutput, vocabulary.addTo(token, length, 1) + 1);
+                    lineIsEmpty = false;
+                }
+
+                @Override
+                public void handleEndOfLine() {
+                    if (!lineIsEmpty) {
+                        writeVarInt(phrasesOutput, END_OF_LINE);
+                        lineIsEmpty = true;
+                    }
+                }
+            });
+        } catch (UncheckedIOException exp) {
+            throw exp.getCause();
+        }
+        try (DataOutputStream vocabularyOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getVocabularyFile(encodedCorpus))))) {
+            vocabulary.writeTo(vocabularyOutput);
+        }
+    }
+
+    public static Vocabulary readVocabulary(String encodedCorpus) throws IOException {
+        try (DataInputStream vocabularyInput = new DataInputStream(new BufferedInputStream(new FileInputStream(getVocabularyFile(encodedCorpus))))) {
+            return Vocabulary.readFrom(vocabularyInput);
+        }
+    }
+
+    /**
+     * Counts all bigrams of the encoded corpus, where phrases are first mapped to new indices.
+     *
+     * @param phraseMapping for every index in the vocabulary of the encoded corpus, the index of the phrase in the returned counts
+     * @return counts of all bigrams, with keys created by SparseCountRows.packPair(firstPhrase, secondPhrase)
+     */
+
+    public static Long2IntOpenHashMap countBigrams(String encodedCorpus, int[] phraseMapping) throws IOException {
+        Long2IntOpenHashMap bigramCounts = new Long2IntOpenHashMap();
+        readBigrams(encodedCorpus, phraseMapping, (firstPhrase, secondPhrase) -> bigramCounts.addTo(SparseCountRows.packPair(firstPhrase, secondPhrase), 1));
+        return bigramCounts;
+    }
+
+    /**
+     * Passes all bigrams of the encoded corpus to handler, where phrases are first mapped to new indices.
+     *
+     * @param phraseMapping for every index in the vocabulary of the encoded corpus, the index of the phrase passed to handler
+     */
+
+    public static void readBigrams(String encodedCorpus, int[] phraseMapping, BigramHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(getPhrasesFile(encodedCorpus)), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int prevPhrase = -1;
+            //the state of the variable length decoding is kept across regions
+            int value = 0;
+            int shift = 0;
+            for (long regionStart = 0; regionStart < size; regionStart += MAX_REGION_SIZE) {
+                int regionSize = (int) Math.min(size - regionStart, MAX_REGION_SIZE);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+                for (int position = 0; position < regionSize; position++) {
+                    byte currByte = buffer.get(position);
+                    value |= (currByte & 0x7F) << shift;
+                    if (currByte < 0) {
+                        shift += 7;
+                    } else {
+                        if (value == END_OF_LINE) {
+                            prevPhrase = -1;
+                        } else {
+                            int currPhrase = phraseMapping[value - 1];
+                            if (prevPhrase != -1) {
+                                handler.handleBigram(prevPhrase, currPhrase);
+                            }
+                            prevPhrase = currPhrase;
+                        }
+                        value = 0;
+                        shift = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeVarInt(OutputStream output, int value) {
+        try {
+            while ((value & ~0x7F) != 0) {
+                output.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            output.write(value);
+        } catch (IOException exp) {
+            throw new UncheckedIOException(exp);
+        }
+    }
+
+    private static String getVocabularyFile(String encodedCorpus) {
+        return encodedCorpus + ".vocabulary";
+    }
+
+    private static String getPhrasesFile(String encodedCorpus) {
+        return encodedCorpus + ".phrases";
+    }
+}
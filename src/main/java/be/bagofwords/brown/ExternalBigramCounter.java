@@ -0,0 +1,253 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts bigrams with a bounded amount of memory. Bigrams are collected in a buffer of packed (firstPhrase, secondPhrase) pairs, that grows
+ * until it reaches its capacity. When the buffer is full, it is sorted and written to a temporary file as a run of unique pairs with their
+ * counts. createContextCounts() merges all runs and writes the counts directly to SparseCountRows, so the counts are never stored in hash
+ * maps.
+ * <p/>
+ * The buffer is sorted with ParallelUtils.sort(), which uses a temporary array of the same size, and growing the buffer briefly keeps
+ * the old buffer next to the new one. The capacity of the buffer is therefore half of the memory budget, so that the buffer and these
+ * temporary arrays never use more than the budget together.
+ */
+public class ExternalBigramCounter implements BigramHandler, Closeable {
+
+    //every buffered pair takes 8 bytes in the buffer and 8 bytes in the temporary array of the sort
+    private static final int BYTES_PER_BUFFERED_PAIR = 16;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final int capacity;
+    private final File spillDirectory;
+    private long[] buffer;
+    private int bufferSize;
+    private final List<File> runs;
+
+    /**
+     * @param memoryBudget maximum number of bytes used to buffer and sort bigrams before they are written to a temporary file
+     */
+
+    public ExternalBigramCounter(long memoryBudget) {
+        this(memoryBudget, null);
+    }
+
+    /**
+     * @param memoryBudget   maximum number of bytes used to buffer and sort bigrams before they are written to a temporary file
+     * @param spillDirectory directory of the temporary files, or null to use the default temporary directory (java.io.tmpdir)
+     */
+
+    public ExternalBigramCounter(long memoryBudget, File spillDirectory) {
+        long capacity = memoryBudget / BYTES_PER_BUFFERED_PAIR;
+        if (capacity < 1 || capacity > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("Unsupported memory budget " + memoryBudget);
+        }
+        if (spillDirectory != null && !spillDirectory.isDirectory()) {
+            throw new RuntimeException("Spill directory " + spillDirectory + " does not exist");
+        }
+        this.capacity = (int) capacity;
+        this.spillDirectory = spillDirectory;
+        //small corpora never allocate the full budget
+        this.buffer = new long[Math.min(this.capacity, INITIAL_CAPACITY)];
+        this.bufferSize = 0;
+        this.runs = new ArrayList<>();
+    }
+
+    @Override
+    public void handleBigram(int firstPhrase, int secondPhrase) {
+        if (bufferSize == buffer.length) {
+            if (buffer.length < capacity) {
+                //the old buffer is at most half of the new one, so both fit in the budget of the sort
+                buffer = Arrays.copyOf(buffer, (int) Math.min(capacity, 2L * buffer.length));
+            } else {
+                try {
+                    writeRun();
+                } catch (IOException exp) {
+                    throw new UncheckedIOException(exp);
+                }
+            }
+        }
+        buffer[bufferSize++] = SparseCountRows.packPair(firstPhrase, secondPhrase);
+    }
+
+    public int getNumberOfRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Merges all counted bigrams. If the buffer was never written to disk, the counts are taken directly from the buffer.
+     */
+
+    public CompactContextCounts createContextCounts(int numberOfPhrases) throws IOException {
+        SparseCountRowsBuilder nextRows = new SparseCountRowsBuilder(numberOfPhrases);
+        if (runs.isEmpty()) {
+            ParallelUtils.sort(buffer, 0, bufferSize);
+            int start = 0;
+            while (start < bufferSize) {
+                int end = start + 1;
+                while (end < bufferSize && buffer[end] == buffer[start]) {
+                    end++;
+                }
+                nextRows.add(buffer[start], end - start);
+                start = end;
+            }
+            bufferSize = 0;
+        } else {
+            writeRun();
+            mergeRuns(nextRows);
+        }
+        SparseCountRows rows = nextRows.build();
+        return new CompactContextCounts(rows.transpose(numberOfPhrases), rows);
+    }
+
+    /**
+     * Deletes all temporary files
+     */
+
+    @Override
+    public void close() {
+        for (File run : runs) {
+            if (!run.delete()) {
+                run.deleteOnExit();
+            }
+        }
+        runs.clear();
+    }
+
+    private void writeRun() throws IOException {
+        ParallelUtils.sort(buffer, 0, bufferSize);
+        File run = File.createTempFile("bigrams", ".run", spillDirectory);
+        run.deleteOnExit();
+        runs.add(run);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), READ_BUFFER_SIZE))) {
+            int start = 0;
+            while (start < bufferSize) {
+                int end = start + 1;
+                while (end < bufferSize && buffer[end] == buffer[start]) {
+                    end++;
+                }
+                output.writeLong(buffer[start]);
+                output.writeInt(end - start);
+                start = end;
+            }
+        }
+        bufferSize = 0;
+    }
+
+    /**
+     * k-way merge of all runs, every run is sorted on its pairs
+     */
+
+    private void mergeRuns(SparseCountRowsBuilder result) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size());
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                long pair = reader.getPair();
+                int count = 0;
+                //collect counts of the same pair from all runs
+                while (reader != null && reader.getPair() == pair) {
+                    count += reader.getCount();
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                    reader = queue.poll();
+                }
+                if (reader != null) {
+                    queue.add(reader);
+                }
+                result.add(pair, count);
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    private static class RunReader implements Comparable<RunReader>, Closeable {
+
+        private final DataInputStream input;
+        private long pair;
+        private int count;
+
+        public RunReader(File run) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(run), READ_BUFFER_SIZE));
+        }
+
+        public boolean next() throws IOException {
+            try {
+                pair = input.readLong();
+                count = input.readInt();
+                return true;
+            } catch (EOFException exp) {
+                return false;
+            }
+        }
+
+        public long getPair() {
+            return pair;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return Long.compare(pair, other.pair);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Collects pairs that are added in sorted order in SparseCountRows
+     */
+
+    private static class SparseCountRowsBuilder {
+
+        private final int[] offsets;
+        private final IntArrayList keys;
+        private final IntArrayList counts;
+
+        public SparseCountRowsBuilder(int numberOfRows) {
+            this.offsets = new int[numberOfRows + 1];
+            this.keys = new IntArrayList();
+            this.counts = new IntArrayList();
+        }
+
+        public void add(long pair, int count) {
+            offsets[SparseCountRows.getRow(pair) + 1]++;
+            keys.add(SparseCountRows.getKey(pair));
+            counts.add(count);
+        }
+
+        public SparseCountRows build() {
+            for (int row = 0; row < offsets.length - 1; row++) {
+                offsets[row + 1] += offsets[row];
+            }
+            return new SparseCountRows(offsets, keys.toIntArray(), counts.toIntArray());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package be.bagofwords.brown;
+
+/**
+ * Natural logarithms of all integers smaller than the size of the table, larger values fall back to Math.log(). The logarithm of the
+ * grand total, which is needed in every term of the mutual information, is cached separately. Lookups return exactly the value of
+ * Math.log().
+ */
+class LogTable {
+
+    private final double[] logs;
+    private volatile GrandTotalLog grandTotalLog;
+
+    public LogTable(int size) {
+        this.logs = new double[size];
+        for (int i = 1; i < size; i++) {
+            logs[i] = Math.log(i);
+        }
+        this.grandTotalLog = new GrandTotalLog(0, Double.NEGATIVE_INFINITY);
+    }
+
+    public int size() {
+        return logs.length;
+    }
+
+    /**
+     * @param value a strictly positive value
+     */
+
+    public double log(int value) {
+        return value < logs.length ? logs[value] : Math.log(value);
+    }
+
+    public double logGrandTotal(int grandTotal) {
+        GrandTotalLog result = grandTotalLog;
+        if (result.grandTotal != grandTotal) {
+            result = new GrandTotalLog(grandTotal, log(grandTotal));
+            grandTotalLog = result;
+        }
+        return result.log;
+    }
+
+    private static class GrandTotalLog {
+
+        private final int grandTotal;
+        private final double log;
+
+        private GrandTotalLog(int grandTotal, double log) {
+            this.grandTotal = grandTotal;
+            this.log = log;
+        }
+    }
+}
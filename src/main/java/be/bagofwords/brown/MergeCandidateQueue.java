@@ -0,0 +1,198 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+/**
+ * Indexed priority queue of the merge candidates of all pairs of clusters, with the candidate with the highest score at the head of the
+ * queue. Candidates are stored as primitive arrays (packed cluster pairs and scores) instead of MergeCandidate objects. The candidate
+ * of a pair of clusters is found by its index in the sorted list of clusters, so that removing or rescoring the candidates of a
+ * single cluster only touches the affected entries.
+ * <p/>
+ * Scores of all candidates should be set with setScore() before calling initialize(), after that updateScore() should be used.
+ */
+class MergeCandidateQueue {
+
+    //largest array length that all JVMs support
+    private static final int MAX_NUMBER_OF_CANDIDATES = Integer.MAX_VALUE - 8;
+
+    private final int[] clusters; //sorted
+    private final Int2IntOpenHashMap clusterToSlot;
+    private final long[] pairs; //cluster1 in the upper 32 bits, cluster2 in the lower 32 bits, with cluster1 < cluster2
+    private final double[] scores;
+    private final int[] heap; //indices of candidates
+    private final int[] heapPositions; //position of every candidate in the heap, -1 if removed
+    private int size;
+
+    public MergeCandidateQueue(int[] sortedClusters) {
+        this.clusters = sortedClusters;
+        this.clusterToSlot = ContextCountsUtils.createNewInt2IntMap(clusters.length);
+        this.clusterToSlot.defaultReturnValue(-1);
+        long numberOfPairs = (long) clusters.length * (clusters.length - 1) / 2;
+        if (numberOfPairs > MAX_NUMBER_OF_CANDIDATES) {
+            throw new RuntimeException("Too many clusters to store all " + numberOfPairs + " merge candidates: " + clusters.length);
+        }
+        int numberOfCandidates = (int) numberOfPairs;
+        this.pairs = new long[numberOfCandidates];
+        this.scores = new double[numberOfCandidates];
+        this.heap = new int[numberOfCandidates];
+        this.heapPositions = new int[numberOfCandidates];
+        for (int slot1 = 0; slot1 < clusters.length; slot1++) {
+            if (slot1 > 0 && clusters[slot1 - 1] >= clusters[slot1]) {
+                throw new RuntimeException("Clusters are not sorted!");
+            }
+            clusterToSlot.put(clusters[slot1], slot1);
+            for (int slot2 = slot1 + 1; slot2 < clusters.length; slot2++) {
+                pairs[getCandidateOfSlots(slot1, slot2)] = ((long) clusters[slot1] << 32) | (clusters[slot2] & 0xFFFFFFFFL);
+            }
+        }
+    }
+
+    public int getNumberOfClusters() {
+        return clusters.length;
+    }
+
+    public int getCluster(int slot) {
+        return clusters[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCandidate(int cluster1, int cluster2) {
+        return getCandidateOfSlots(clusterToSlot.get(cluster1), clusterToSlot.get(cluster2));
+    }
+
+    public int getCluster1(int candidate) {
+        return (int) (pairs[candidate] >>> 32);
+    }
+
+    public int getCluster2(int candidate) {
+        return (int) pairs[candidate];
+    }
+
+    public double getScore(int candidate) {
+        return scores[candidate];
+    }
+
+    /**
+     * Set the score of a candidate before the queue is initialized. Can be called concurrently for different candidates.
+     */
+
+    public void setScore(int candidate, double score) {
+        scores[candidate] = score;
+    }
+
+    /**
+     * Builds the heap of all candidates in O(n)
+     */
+
+    public void initialize() {
+        size = heap.length;
+        for (int i = 0; i < size; i++) {
+            heap[i] = i;
+            heapPositions[i] = i;
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    public boolean isInQueue(int candidate) {
+        return heapPositions[candidate] != -1;
+    }
+
+    /**
+     * Removes and returns the candidate with the highest score
+     */
+
+    public int poll() {
+        int result = heap[0];
+        removeFromHeap(result);
+        return result;
+    }
+
+    /**
+     * Removes all candidates that contain the given cluster
+     */
+
+    public void removeCandidates(int cluster) {
+        int slot = clusterToSlot.get(cluster);
+        for (int otherSlot = 0; otherSlot < clusters.length; otherSlot++) {
+            if (otherSlot != slot) {
+                int candidate = otherSlot < slot ? getCandidateOfSlots(otherSlot, slot) : getCandidateOfSlots(slot, otherSlot);
+                if (isInQueue(candidate)) {
+                    removeFromHeap(candidate);
+                }
+            }
+        }
+    }
+
+    public void updateScore(int candidate, double score) {
+        double oldScore = scores[candidate];
+        scores[candidate] = score;
+        if (score > oldScore) {
+            siftUp(heapPositions[candidate]);
+        } else if (score < oldScore) {
+            siftDown(heapPositions[candidate]);
+        }
+    }
+
+    private int getCandidateOfSlots(int slot1, int slot2) {
+        //candidates are stored row by row: (0,1), (0,2), ..., (0,n-1), (1,2), ...
+        //computed as long, since the intermediate products overflow an int long before the number of candidates does
+        return (int) ((long) slot1 * clusters.length - (long) slot1 * (slot1 + 1) / 2 + slot2 - slot1 - 1);
+    }
+
+    private void removeFromHeap(int candidate) {
+        int position = heapPositions[candidate];
+        int last = heap[--size];
+        if (last != candidate) {
+            set(position, last);
+            siftDown(position);
+            siftUp(heapPositions[last]);
+        }
+        heapPositions[candidate] = -1;
+    }
+
+    private void siftUp(int position) {
+        int candidate = heap[position];
+        while (position > 0) {
+            int parentPosition = (position - 1) / 2;
+            int parent = heap[parentPosition];
+            if (scores[parent] >= scores[candidate]) {
+                break;
+            }
+            set(position, parent);
+            position = parentPosition;
+        }
+        set(position, candidate);
+    }
+
+    private void siftDown(int position) {
+        int candidate = heap[position];
+        while (2 * position + 1 < size) {
+            int childPosition = 2 * position + 1;
+            if (childPosition + 1 < size && scores[heap[childPosition + 1]] > scores[heap[childPosition]]) {
+                childPosition++;
+            }
+            int child = heap[childPosition];
+            if (scores[candidate] >= scores[child]) {
+                break;
+            }
+            set(position, child);
+            position = childPosition;
+        }
+        set(position, candidate);
+    }
+
+    private void set(int position, int candidate) {
+        heap[position] = candidate;
+        heapPositions[candidate] = position;
+    }
+
+}
@@ -0,0 +1,343 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Dense table with the class bigram counts, the s_k terms and the merge losses of all pairs of clusters. After every merge
+ * the table is updated incrementally, see paragraph "Although we have..." on page 473 of [Brown et al.]:
+ * <ul>
+ * <li>the scores of pairs that do not contain one of the merged clusters only change in the terms that refer to the merged clusters, these are updated in O(1)</li>
+ * <li>the scores of pairs that contain the merged cluster are recomputed in O(K)</li>
+ * </ul>
+ * Clusters are stored in slots sorted by cluster index, such that for slot1 < slot2 the cluster in slot1 is merged into the cluster
+ * in slot2, the same convention as the one used for merge candidates. Only these pairs have a score, so the score rows are triangular.
+ * <p/>
+ * Since the incrementally updated scores differ from freshly computed scores by rounding errors, a resumed clustering continues with the
+ * table stored in its checkpoint (see writeTo() and readFrom()) instead of building a new one, so near-ties are broken in the same way as
+ * in an uninterrupted clustering.
+ */
+class MergeLossTable {
+
+    //minimum number of slots per parallel task, for loops with O(K) and with O(1) work per slot
+    private static final int MIN_ROWS_PER_TASK = 8;
+    private static final int MIN_SLOTS_PER_TASK = 4096;
+
+    private final int[] clusters; //cluster index of every slot
+    private final Int2IntOpenHashMap clusterToSlot;
+    private final boolean[] active;
+    private final int[][] counts; //counts[slot1][slot2] = number of times cluster in slot1 is followed by cluster in slot2
+    private final int[] prevTotals;
+    private final int[] nextTotals;
+    private final double grandTotal;
+    private LogTable logTable;
+    private final double[] sk;
+    private final double[][] scores; //scores[slot1][slot2 - slot1 - 1] = score of merging slot1 into slot2 for slot1 < slot2, rows only store these pairs
+    private int numberOfClusters;
+
+    public MergeLossTable(ContextCounts contextCounts) {
+        clusters = contextCounts.getAllClusters().sorted().toArray();
+        numberOfClusters = clusters.length;
+        clusterToSlot = ContextCountsUtils.createNewInt2IntMap(numberOfClusters);
+        clusterToSlot.defaultReturnValue(-1);
+        for (int slot = 0; slot < numberOfClusters; slot++) {
+            clusterToSlot.put(clusters[slot], slot);
+        }
+        active = new boolean[numberOfClusters];
+        Arrays.fill(active, true);
+        counts = new int[numberOfClusters][numberOfClusters];
+        prevTotals = new int[numberOfClusters];
+        nextTotals = new int[numberOfClusters];
+        grandTotal = contextCounts.getGrandTotal();
+        logTable = contextCounts.getLogTable();
+        for (int slot = 0; slot < numberOfClusters; slot++) {
+            prevTotals[slot] = contextCounts.getPrevTotal(clusters[slot]);
+            nextTotals[slot] = contextCounts.getNextTotal(clusters[slot]);
+            for (Int2IntOpenHashMap.Entry entry : contextCounts.getNextCounts(clusters[slot]).int2IntEntrySet()) {
+                if (entry.getIntValue() != 0) {
+                    int nextSlot = clusterToSlot.get(entry.getIntKey());
+                    if (nextSlot == -1) {
+                        throw new RuntimeException("Counts refer to unknown cluster " + entry.getIntKey());
+                    }
+                    counts[slot][nextSlot] = entry.getIntValue();
+                }
+            }
+        }
+        sk = new double[numberOfClusters];
+        ParallelUtils.forEach(0, numberOfClusters, MIN_ROWS_PER_TASK, slot -> sk[slot] = computeSK(slot));
+        scores = createScoreRows(numberOfClusters);
+        ParallelUtils.forEach(0, numberOfClusters, MIN_ROWS_PER_TASK, slot1 -> {
+            for (int slot2 = slot1 + 1; slot2 < numberOfClusters; slot2++) {
+                scores[slot1][slot2 - slot1 - 1] = computeMergeScore(slot1, slot2);
+            }
+        });
+    }
+
+    private MergeLossTable(int[] clusters, boolean[] active, int[][] counts, int[] prevTotals, int[] nextTotals, double grandTotal, double[] sk, double[][] scores, int numberOfClusters) {
+        this.clusters = clusters;
+        this.clusterToSlot = ContextCountsUtils.createNewInt2IntMap(clusters.length);
+        this.clusterToSlot.defaultReturnValue(-1);
+        for (int slot = 0; slot < clusters.length; slot++) {
+            clusterToSlot.put(clusters[slot], slot);
+        }
+        this.active = active;
+        this.counts = counts;
+        this.prevTotals = prevTotals;
+        this.nextTotals = nextTotals;
+        this.grandTotal = grandTotal;
+        this.sk = sk;
+        this.scores = scores;
+        this.numberOfClusters = numberOfClusters;
+    }
+
+    /**
+     * The scores of a table read with readFrom() are only updated correctly if its log table is the same as the log table of the table
+     * that was written
+     */
+
+    public void setLogTable(LogTable logTable) {
+        this.logTable = logTable;
+    }
+
+    public int getNumberOfClusters() {
+        return numberOfClusters;
+    }
+
+    public long getNumberOfMergeCandidates() {
+        return (long) numberOfClusters * (numberOfClusters - 1) / 2;
+    }
+
+    public double getScore(int cluster1, int cluster2) {
+        int slot1 = clusterToSlot.get(cluster1);
+        int slot2 = clusterToSlot.get(cluster2);
+        return slot1 < slot2 ? scores[slot1][slot2 - slot1 - 1] : scores[slot2][slot1 - slot2 - 1];
+    }
+
+    /**
+     * @return the pair of clusters with the highest score, where cluster1 should be merged into cluster2
+     */
+
+    public MergeCandidate findBestMerge() {
+        int bestSlot1 = -1;
+        int bestSlot2 = -1;
+        double bestScore = -Double.MAX_VALUE;
+        for (int slot1 = 0; slot1 < clusters.length; slot1++) {
+            if (active[slot1]) {
+                double[] row = scores[slot1];
+                for (int slot2 = slot1 + 1; slot2 < clusters.length; slot2++) {
+                    if (active[slot2] && row[slot2 - slot1 - 1] > bestScore) {
+                        bestScore = row[slot2 - slot1 - 1];
+                        bestSlot1 = slot1;
+                        bestSlot2 = slot2;
+                    }
+                }
+            }
+        }
+        if (bestSlot1 == -1) {
+            throw new RuntimeException("Less than 2 clusters remaining!");
+        }
+        return new MergeCandidate(clusters[bestSlot1], clusters[bestSlot2], bestScore);
+    }
+
+    public void mergeClusters(int smallCluster, int largeCluster) {
+        int small = clusterToSlot.get(smallCluster);
+        int large = clusterToSlot.get(largeCluster);
+        if (small == -1 || large == -1 || !active[small] || !active[large] || small == large) {
+            throw new RuntimeException("Can not merge cluster " + smallCluster + " with " + largeCluster);
+        }
+        //step 1: update scores of all pairs that do not contain one of the merged clusters
+        double[] deltaSk = new double[clusters.length];
+        ParallelUtils.forEach(0, clusters.length, MIN_SLOTS_PER_TASK, slot -> {
+            if (active[slot] && slot != small && slot != large) {
+                deltaSk[slot] = computeDeltaSK(slot, small, large);
+            }
+        });
+        ParallelUtils.forEach(0, clusters.length, MIN_ROWS_PER_TASK, slot1 -> {
+            if (active[slot1] && slot1 != small && slot1 != large) {
+                for (int slot2 = slot1 + 1; slot2 < clusters.length; slot2++) {
+                    if (active[slot2] && slot2 != small && slot2 != large) {
+                        scores[slot1][slot2 - slot1 - 1] += computeDeltaMergedSK(slot1, slot2, small, large) - deltaSk[slot1] - deltaSk[slot2];
+                    }
+                }
+                sk[slot1] += deltaSk[slot1];
+            }
+        });
+        //step 2: merge the counts of the small cluster into the large cluster
+        for (int slot = 0; slot < clusters.length; slot++) {
+            counts[slot][large] += counts[slot][small];
+            counts[slot][small] = 0;
+        }
+        for (int slot = 0; slot < clusters.length; slot++) {
+            counts[large][slot] += counts[small][slot];
+            counts[small][slot] = 0;
+        }
+        prevTotals[large] += prevTotals[small];
+        nextTotals[large] += nextTotals[small];
+        prevTotals[small] = 0;
+        nextTotals[small] = 0;
+        active[small] = false;
+        numberOfClusters--;
+        //step 3: recompute scores of all pairs that contain the large cluster
+        sk[large] = computeSK(large);
+        ParallelUtils.forEach(0, clusters.length, MIN_ROWS_PER_TASK, slot -> {
+            if (active[slot] && slot != large) {
+                if (slot < large) {
+                    scores[slot][large - slot - 1] = computeMergeScore(slot, large);
+                } else {
+                    scores[large][slot - large - 1] = computeMergeScore(large, slot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as MutualInformationUtils.computeSK()
+     */
+
+    private double computeSK(int slot) {
+        double result = 0;
+        for (int other = 0; other < clusters.length; other++) {
+            result += computeQK(counts[other][slot], nextTotals[other], prevTotals[slot]);
+        }
+        int nextTotal = nextTotals[slot] - counts[slot][slot];
+        for (int other = 0; other < clusters.length; other++) {
+            if (other != slot) {
+                result += computeQK(counts[slot][other], nextTotal, prevTotals[other]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as MutualInformationUtils.computeMergeScore(), i.e. computeSK() of the cluster that results from merging slot1 and slot2, minus the
+     * original computeSK() values of both clusters
+     */
+
+    private double computeMergeScore(int slot1, int slot2) {
+        int prevTotal = prevTotals[slot1] + prevTotals[slot2];
+        int nextTotal = nextTotals[slot1] + nextTotals[slot2];
+        int selfCounts = counts[slot1][slot1] + counts[slot1][slot2] + counts[slot2][slot1] + counts[slot2][slot2];
+        double result = computeQK(selfCounts, nextTotal, prevTotal);
+        for (int other = 0; other < clusters.length; other++) {
+            if (other != slot1 && other != slot2) {
+                result += computeQK(counts[other][slot1] + counts[other][slot2], nextTotals[other], prevTotal);
+                result += computeQK(counts[slot1][other] + counts[slot2][other], nextTotal - selfCounts, prevTotals[other]);
+            }
+        }
+        return result - sk[slot1] - sk[slot2];
+    }
+
+    /**
+     * Change of computeSK(slot) when small is merged into large. Only the terms that refer to small or large are affected.
+     */
+
+    private double computeDeltaSK(int slot, int small, int large) {
+        int nextTotal = nextTotals[slot] - counts[slot][slot];
+        double oldTerms = computeQK(counts[small][slot], nextTotals[small], prevTotals[slot])
+                + computeQK(counts[large][slot], nextTotals[large], prevTotals[slot])
+                + computeQK(counts[slot][small], nextTotal, prevTotals[small])
+                + computeQK(counts[slot][large], nextTotal, prevTotals[large]);
+        double newTerms = computeQK(counts[small][slot] + counts[large][slot], nextTotals[small] + nextTotals[large], prevTotals[slot])
+                + computeQK(counts[slot][small] + counts[slot][large], nextTotal, prevTotals[small] + prevTotals[large]);
+        return newTerms - oldTerms;
+    }
+
+    /**
+     * Change of the computeSK() of the cluster that results from merging slot1 and slot2, when small is merged into large.
+     */
+
+    private double computeDeltaMergedSK(int slot1, int slot2, int small, int large) {
+        int prevTotal = prevTotals[slot1] + prevTotals[slot2];
+        int nextTotal = nextTotals[slot1] + nextTotals[slot2] - counts[slot1][slot1] - counts[slot1][slot2] - counts[slot2][slot1] - counts[slot2][slot2];
+        int prevCountsSmall = counts[small][slot1] + counts[small][slot2];
+        int prevCountsLarge = counts[large][slot1] + counts[large][slot2];
+        int nextCountsSmall = counts[slot1][small] + counts[slot2][small];
+        int nextCountsLarge = counts[slot1][large] + counts[slot2][large];
+        double oldTerms = computeQK(prevCountsSmall, nextTotals[small], prevTotal)
+                + computeQK(prevCountsLarge, nextTotals[large], prevTotal)
+                + computeQK(nextCountsSmall, nextTotal, prevTotals[small])
+                + computeQK(nextCountsLarge, nextTotal, prevTotals[large]);
+        double newTerms = computeQK(prevCountsSmall + prevCountsLarge, nextTotals[small] + nextTotals[large], prevTotal)
+                + computeQK(nextCountsSmall + nextCountsLarge, nextTotal, prevTotals[small] + prevTotals[large]);
+        return newTerms - oldTerms;
+    }
+
+    /**
+     * Writes the complete table, including the incrementally updated scores, so that readFrom() restores exactly the same scores
+     */
+
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(clusters.length);
+        output.writeInt(numberOfClusters);
+        output.writeDouble(grandTotal);
+        for (int slot = 0; slot < clusters.length; slot++) {
+            output.writeInt(clusters[slot]);
+            output.writeBoolean(active[slot]);
+            output.writeInt(prevTotals[slot]);
+            output.writeInt(nextTotals[slot]);
+            output.writeDouble(sk[slot]);
+        }
+        for (int slot1 = 0; slot1 < clusters.length; slot1++) {
+            for (int slot2 = 0; slot2 < clusters.length; slot2++) {
+                output.writeInt(counts[slot1][slot2]);
+            }
+            for (double score : scores[slot1]) {
+                output.writeDouble(score);
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by writeTo(). The table computes new scores with Math.log() until setLogTable() is called.
+     */
+
+    public static MergeLossTable readFrom(DataInputStream input) throws IOException {
+        int numberOfSlots = input.readInt();
+        int numberOfClusters = input.readInt();
+        double grandTotal = input.readDouble();
+        int[] clusters = new int[numberOfSlots];
+        boolean[] active = new boolean[numberOfSlots];
+        int[] prevTotals = new int[numberOfSlots];
+        int[] nextTotals = new int[numberOfSlots];
+        double[] sk = new double[numberOfSlots];
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            clusters[slot] = input.readInt();
+            active[slot] = input.readBoolean();
+            prevTotals[slot] = input.readInt();
+            nextTotals[slot] = input.readInt();
+            sk[slot] = input.readDouble();
+        }
+        int[][] counts = new int[numberOfSlots][numberOfSlots];
+        double[][] scores = createScoreRows(numberOfSlots);
+        for (int slot1 = 0; slot1 < numberOfSlots; slot1++) {
+            for (int slot2 = 0; slot2 < numberOfSlots; slot2++) {
+                counts[slot1][slot2] = input.readInt();
+            }
+            for (int ind = 0; ind < scores[slot1].length; ind++) {
+                scores[slot1][ind] = input.readDouble();
+            }
+        }
+        return new MergeLossTable(clusters, active, counts, prevTotals, nextTotals, grandTotal, sk, scores, numberOfClusters);
+    }
+
+    /**
+     * Row slot1 only stores the scores of slot1 with the slots after it, so the scores take half the memory of a full K x K table
+     */
+
+    private static double[][] createScoreRows(int numberOfSlots) {
+        double[][] result = new double[numberOfSlots][];
+        for (int slot = 0; slot < numberOfSlots; slot++) {
+            result[slot] = new double[numberOfSlots - slot - 1];
+        }
+        return result;
+    }
+
+    private double computeQK(int jointCounts, int totalCki, int totalCkj) {
+        return MutualInformationUtils.computeQK(jointCounts, totalCki, totalCkj, grandTotal, logTable);
+    }
+
+}
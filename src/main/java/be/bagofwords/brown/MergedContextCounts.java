@@ -2,7 +2,8 @@ package be.bagofwords.brown;
 
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /**
  * Created by Koen Deschacht (koendeschacht@gmail.com) on 03/12/14.
@@ -21,6 +22,16 @@ public class MergedContextCounts implements ContextCounts {
         this.contextCounts = contextCounts;
     }
 
+    @Override
+    public LogTable getLogTable() {
+        return contextCounts.getLogTable();
+    }
+
+    @Override
+    public LongAdder getClonedMapsCounter() {
+        return contextCounts.getClonedMapsCounter();
+    }
+
     @Override
     public int getPrevTotal(int cluster) {
         if (cluster == smallCluster) {
@@ -49,10 +60,8 @@ public class MergedContextCounts implements ContextCounts {
     }
 
     @Override
-    public Set<Integer> getAllClusters() {
-        Set<Integer> result = contextCounts.getAllClusters();
-        result.remove(smallCluster);
-        return result;
+    public IntStream getAllClusters() {
+        return contextCounts.getAllClusters().filter(cluster -> cluster != smallCluster);
     }
 
     @Override
@@ -86,7 +95,7 @@ public class MergedContextCounts implements ContextCounts {
     private Int2IntOpenHashMap replace(Int2IntOpenHashMap result, int smallCluster, int largeCluster) {
         int countsSmallCluster = result.get(smallCluster);
         if (countsSmallCluster > 0) {
-            result = result.clone();
+            result = ContextCountsUtils.cloneMap(result, getClonedMapsCounter());
             result.remove(smallCluster);
             result.addTo(largeCluster, countsSmallCluster);
         }
@@ -96,7 +105,7 @@ public class MergedContextCounts implements ContextCounts {
     private Int2IntOpenHashMap merge(Int2IntOpenHashMap counts1, Int2IntOpenHashMap counts2) {
         Int2IntOpenHashMap large = counts1.size() > counts2.size() ? counts1 : counts2;
         Int2IntOpenHashMap small = counts1.size() > counts2.size() ? counts2 : counts1;
-        Int2IntOpenHashMap result = large.clone();
+        Int2IntOpenHashMap result = ContextCountsUtils.cloneMap(large, getClonedMapsCounter());
         for (Int2IntOpenHashMap.Entry entry : small.int2IntEntrySet()) {
             result.addTo(entry.getIntKey(), entry.getIntValue());
         }
@@ -0,0 +1,275 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Terms of the average mutual information of adjacent clusters, and the change of these terms when two clusters are merged.
+ * See top of page 7 of [Brown et al.].
+ */
+public class MutualInformationUtils {
+
+    public static final double MERGE_SCORE_BOUND_MARGIN = 1e-10;
+    //maximum difference between the scores computed with and without a log table
+    public static final double LOG_TABLE_TOLERANCE = 1e-10;
+
+    /**
+     * @param table log table, or null to use Math.log()
+     * @return natural logarithm of value
+     */
+
+    public static double log(int value, LogTable table) {
+        return table == null ? Math.log(value) : table.log(value);
+    }
+
+    /**
+     * Score of merging cki into ckj, where ski and skj are the computeSK() values of both clusters. The score is computed from the counts
+     * of both clusters without creating intermediate maps, and is identical to the computeSK() value of ckj in
+     * MergedContextCounts(cki, ckj, contextCounts) minus ski and skj.
+     */
+
+    public static double computeMergeScore(int cki, double ski, int ckj, double skj, ContextCounts contextCounts) {
+        Int2IntOpenHashMap prevCountsI = contextCounts.getPrevCounts(cki);
+        Int2IntOpenHashMap prevCountsJ = contextCounts.getPrevCounts(ckj);
+        Int2IntOpenHashMap nextCountsI = contextCounts.getNextCounts(cki);
+        Int2IntOpenHashMap nextCountsJ = contextCounts.getNextCounts(ckj);
+        double grandTotal = contextCounts.getGrandTotal();
+        LogTable table = contextCounts.getLogTable();
+        int prevTotal = contextCounts.getPrevTotal(cki) + contextCounts.getPrevTotal(ckj);
+        int nextTotal = contextCounts.getNextTotal(cki) + contextCounts.getNextTotal(ckj);
+        int selfCounts = prevCountsI.get(cki) + prevCountsI.get(ckj) + prevCountsJ.get(cki) + prevCountsJ.get(ckj);
+        double mergedSk = computeQK(selfCounts, nextTotal, prevTotal, grandTotal, table);
+        //counts of clusters preceding the merged cluster
+        ObjectIterator<Int2IntMap.Entry> iterator = prevCountsJ.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int cluster = entry.getIntKey();
+            if (cluster != cki && cluster != ckj) {
+                mergedSk += computeQK(entry.getIntValue() + prevCountsI.get(cluster), contextCounts.getNextTotal(cluster), prevTotal, grandTotal, table);
+            }
+        }
+        iterator = prevCountsI.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int cluster = entry.getIntKey();
+            if (cluster != cki && cluster != ckj && !prevCountsJ.containsKey(cluster)) {
+                mergedSk += computeQK(entry.getIntValue(), contextCounts.getNextTotal(cluster), prevTotal, grandTotal, table);
+            }
+        }
+        //counts of clusters following the merged cluster
+        int nextTotalWithoutSelfCounts = nextTotal - selfCounts;
+        iterator = nextCountsJ.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int cluster = entry.getIntKey();
+            if (cluster != cki && cluster != ckj) {
+                mergedSk += computeQK(entry.getIntValue() + nextCountsI.get(cluster), nextTotalWithoutSelfCounts, contextCounts.getPrevTotal(cluster), grandTotal, table);
+            }
+        }
+        iterator = nextCountsI.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int cluster = entry.getIntKey();
+            if (cluster != cki && cluster != ckj && !nextCountsJ.containsKey(cluster)) {
+                mergedSk += computeQK(entry.getIntValue(), nextTotalWithoutSelfCounts, contextCounts.getPrevTotal(cluster), grandTotal, table);
+            }
+        }
+        double result = mergedSk - ski - skj;
+        if (BrownClustering.DO_TESTS) {
+            double expectedResult = computeMergeScoreWithMergedCounts(cki, ski, ckj, skj, contextCounts);
+            if (Math.abs(result - expectedResult) > 1e-9) {
+                throw new RuntimeException("Inconsistent merge score! " + result + " " + expectedResult);
+            }
+        }
+        return result;
+    }
+
+    public static double computeMergeScore(int cki, double ski, int ckj, ContextCounts contextCounts) {
+        return computeMergeScore(cki, ski, ckj, contextCounts.getSk(ckj), contextCounts);
+    }
+
+    /**
+     * Reference implementation of computeMergeScore(), only used to check the results during development
+     */
+
+    public static double computeMergeScoreWithMergedCounts(int cki, double ski, int ckj, double skj, ContextCounts contextCounts) {
+        MergedContextCounts mergedCounts = new MergedContextCounts(cki, ckj, contextCounts);
+        double result = -ski - skj;
+        result += computeSK(ckj, mergedCounts);
+        return result;
+    }
+
+    /**
+     * Upper bound of computeMergeScore(cki, 0.0, ckj, contextCounts) for clusters cki and ckj that are not adjacent (cki is never followed
+     * or preceded by ckj). For such clusters, the terms of the contexts of ckj that are not contexts of cki only depend on the totals of
+     * ckj, so the score can be computed by visiting the contexts of cki only. This is much cheaper than computeMergeScore() if cki has few
+     * contexts, e.g. when cki is an infrequent phrase. The bound adds MERGE_SCORE_BOUND_MARGIN to account for rounding errors.
+     */
+
+    public static double computeMergeScoreUpperBound(int cki, int ckj, ContextCounts contextCounts) {
+        Int2IntOpenHashMap prevCountsJ = contextCounts.getPrevCounts(ckj);
+        Int2IntOpenHashMap nextCountsJ = contextCounts.getNextCounts(ckj);
+        Int2IntOpenHashMap nextCountsI = contextCounts.getNextCounts(cki);
+        double grandTotal = contextCounts.getGrandTotal();
+        LogTable table = contextCounts.getLogTable();
+        int selfCountsI = nextCountsI.get(cki);
+        int selfCountsJ = nextCountsJ.get(ckj);
+        int prevTotalJ = contextCounts.getPrevTotal(ckj);
+        int nextTotalJ = contextCounts.getNextTotal(ckj);
+        int mergedPrevTotal = contextCounts.getPrevTotal(cki) + prevTotalJ;
+        int mergedNextTotal = contextCounts.getNextTotal(cki) + nextTotalJ;
+        int mergedSelfCounts = selfCountsI + selfCountsJ;
+        double result = computeQK(mergedSelfCounts, mergedNextTotal, mergedPrevTotal, grandTotal, table) - computeQK(selfCountsJ, nextTotalJ, prevTotalJ, grandTotal, table);
+        //clusters preceding cki
+        int remainingPrevCountsJ = prevTotalJ - selfCountsJ;
+        ObjectIterator<Int2IntMap.Entry> iterator = contextCounts.getPrevCounts(cki).int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int cluster = entry.getIntKey();
+            if (cluster != cki) {
+                int countJ = prevCountsJ.get(cluster);
+                int nextTotal = contextCounts.getNextTotal(cluster);
+                result += computeQK(entry.getIntValue() + countJ, nextTotal, mergedPrevTotal, grandTotal, table) - computeQK(countJ, nextTotal, prevTotalJ, grandTotal, table);
+                remainingPrevCountsJ -= countJ;
+            }
+        }
+        //clusters preceding ckj only: q(count, nextTotal, mergedPrevTotal) - q(count, nextTotal, prevTotalJ) = count * log(prevTotalJ / mergedPrevTotal)
+        if (remainingPrevCountsJ > 0) {
+            result += remainingPrevCountsJ / grandTotal * Math.log(prevTotalJ / (double) mergedPrevTotal);
+        }
+        //clusters following cki
+        int nextTotalWithoutSelfCountsJ = nextTotalJ - selfCountsJ;
+        int mergedNextTotalWithoutSelfCounts = mergedNextTotal - mergedSelfCounts;
+        int remainingNextCountsJ = nextTotalWithoutSelfCountsJ;
+        iterator = nextCountsI.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int cluster = entry.getIntKey();
+            if (cluster != cki) {
+                int countJ = nextCountsJ.get(cluster);
+                int prevTotal = contextCounts.getPrevTotal(cluster);
+                result += computeQK(entry.getIntValue() + countJ, mergedNextTotalWithoutSelfCounts, prevTotal, grandTotal, table) - computeQK(countJ, nextTotalWithoutSelfCountsJ, prevTotal, grandTotal, table);
+                remainingNextCountsJ -= countJ;
+            }
+        }
+        //clusters following ckj only
+        if (remainingNextCountsJ > 0) {
+            result += remainingNextCountsJ / grandTotal * Math.log(nextTotalWithoutSelfCountsJ / (double) mergedNextTotalWithoutSelfCounts);
+        }
+        return result + MERGE_SCORE_BOUND_MARGIN;
+    }
+
+    /**
+     * Uses the log table of contextCounts if it has one, see ContextCounts.getLogTable()
+     */
+
+    public static double computeSK(int cluster, ContextCounts contextCounts) {
+        LogTable table = contextCounts.getLogTable();
+        if (table == null) {
+            return computeSKWithoutLogTable(cluster, contextCounts);
+        } else {
+            return computeSKWithLogTable(cluster, contextCounts, table);
+        }
+    }
+
+    static double computeSKWithoutLogTable(int cluster, ContextCounts contextCounts) {
+        double sk = 0;
+        double grandTotal = contextCounts.getGrandTotal();
+        int prevTotal = contextCounts.getPrevTotal(cluster);
+        ObjectIterator<Int2IntMap.Entry> iterator = contextCounts.getPrevCounts(cluster).int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            sk += computeQK(entry.getIntValue(), contextCounts.getNextTotal(entry.getIntKey()), prevTotal, grandTotal);
+        }
+        Int2IntOpenHashMap nextCounts = contextCounts.getNextCounts(cluster);
+        int nextTotal = contextCounts.getNextTotal(cluster) - nextCounts.get(cluster);
+        iterator = nextCounts.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            if (entry.getIntKey() != cluster) {
+                sk += computeQK(entry.getIntValue(), nextTotal, contextCounts.getPrevTotal(entry.getIntKey()), grandTotal);
+            }
+        }
+        return sk;
+    }
+
+    /**
+     * Since all counts are integers, the sum of the computeQK() terms of a cluster can be rewritten as
+     * (sum of count * (log(count) - log(total of context cluster)) + total * (log(grandTotal) - log(total))) / grandTotal
+     * for both the preceding and following clusters. All logarithms are looked up in the log table or in the cached totals of contextCounts.
+     */
+
+    static double computeSKWithLogTable(int cluster, ContextCounts contextCounts, LogTable table) {
+        int grandTotal = contextCounts.getGrandTotal();
+        double logGrandTotal = table.logGrandTotal(grandTotal);
+        double sum = 0;
+        int prevTotal = contextCounts.getPrevTotal(cluster);
+        ObjectIterator<Int2IntMap.Entry> iterator = contextCounts.getPrevCounts(cluster).int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int count = entry.getIntValue();
+            if (count > 0) {
+                sum += count * (table.log(count) - contextCounts.getLogNextTotal(entry.getIntKey()));
+            }
+        }
+        if (prevTotal > 0) {
+            sum += prevTotal * (logGrandTotal - table.log(prevTotal));
+        }
+        Int2IntOpenHashMap nextCounts = contextCounts.getNextCounts(cluster);
+        int nextTotal = contextCounts.getNextTotal(cluster) - nextCounts.get(cluster);
+        iterator = nextCounts.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int count = entry.getIntValue();
+            if (count > 0 && entry.getIntKey() != cluster) {
+                sum += count * (table.log(count) - contextCounts.getLogPrevTotal(entry.getIntKey()));
+            }
+        }
+        if (nextTotal > 0) {
+            sum += nextTotal * (logGrandTotal - table.log(nextTotal));
+        }
+        return sum / grandTotal;
+    }
+
+    public static double computeQK(int jointCounts, int totalCki, int totalCkj, double grandTotal) {
+        return computeQK(jointCounts, totalCki, totalCkj, grandTotal, null);
+    }
+
+    /**
+     * @param table log table, or null to compute the logarithms with Math.log()
+     */
+
+    public static double computeQK(int jointCounts, int totalCki, int totalCkj, double grandTotal, LogTable table) {
+        if (jointCounts > 0) {
+            if (BrownClustering.DO_TESTS) {
+                checkProbability(jointCounts / grandTotal);
+                checkProbability(totalCki / grandTotal);
+                checkProbability(totalCkj / grandTotal);
+                if (totalCki == 0 || totalCkj == 0) {
+                    throw new RuntimeException("Illegal probabilities!");
+                }
+            }
+            if (table == null) {
+                return computeQKWithoutLogTable(jointCounts, totalCki, totalCkj, grandTotal);
+            } else {
+                return jointCounts / grandTotal * (table.log(jointCounts) + table.logGrandTotal((int) grandTotal) - table.log(totalCki) - table.log(totalCkj));
+            }
+        } else {
+            return 0.0;
+        }
+    }
+
+    private static double computeQKWithoutLogTable(int jointCounts, int totalCki, int totalCkj, double grandTotal) {
+        double pklm = jointCounts / grandTotal;
+        double plkl = totalCki / grandTotal;
+        double prkm = totalCkj / grandTotal;
+        return pklm * Math.log(pklm / (plkl * prkm));
+    }
+
+    private static void checkProbability(double probability) {
+        if (probability < 0 || probability > 1 || Double.isNaN(probability)) {
+            throw new RuntimeException("Illegal probability " + probability);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package be.bagofwords.brown;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Parallel loops over ranges of indices. A loop is split in tasks of at least minTaskSize indices, so that the overhead of forking a
+ * task stays small compared to the work it does, and loops with at most minTaskSize indices run sequentially. Tasks run in the
+ * ForkJoinPool of the calling thread: the pool of the clustering (see BrownClustering.setParallelism()) for all work started from
+ * BrownClustering.run(), the common pool otherwise. Tasks are sized from the parallelism of that pool. Arrays.parallelSort() and parallel
+ * streams also run in the pool of the calling thread, but size their tasks from the parallelism of the common pool, so the clustering uses
+ * sort() and mapReduce() instead.
+ */
+class ParallelUtils {
+
+    //every thread gets a few tasks, so threads that finish early can steal work of slower threads
+    private static final int TASKS_PER_THREAD = 4;
+    //smaller ranges are sorted with Arrays.sort(), same value as the one used by Arrays.parallelSort()
+    private static final int MIN_SORT_TASK_SIZE = 1 << 13;
+
+    private ParallelUtils() {
+    }
+
+    public static void forEach(int start, int end, int minTaskSize, IntConsumer action) {
+        if (end - start <= minTaskSize || getParallelism() == 1) {
+            for (int i = start; i < end; i++) {
+                action.accept(i);
+            }
+        } else {
+            int taskSize = Math.max(minTaskSize, (end - start) / (TASKS_PER_THREAD * getParallelism()));
+            new RangeTask(start, end, taskSize, action).invoke();
+        }
+    }
+
+    /**
+     * Sorts array from fromIndex (inclusive) to toIndex (exclusive), by sorting parts of the range in parallel and merging the sorted parts.
+     * Uses a temporary array of the size of the range.
+     */
+
+    public static void sort(long[] array, int fromIndex, int toIndex) {
+        if (toIndex - fromIndex <= MIN_SORT_TASK_SIZE || getParallelism() == 1) {
+            Arrays.sort(array, fromIndex, toIndex);
+        } else {
+            int taskSize = Math.max(MIN_SORT_TASK_SIZE, (toIndex - fromIndex) / (TASKS_PER_THREAD * getParallelism()));
+            new SortTask(array, new long[toIndex - fromIndex], fromIndex, fromIndex, toIndex, taskSize).invoke();
+        }
+    }
+
+    public static void sort(long[] array) {
+        sort(array, 0, array.length);
+    }
+
+    /**
+     * Maps all indices from start (inclusive) to end (exclusive) in parallel and combines the results pairwise, in a tree. combine(first,
+     * second) is always called with the results of consecutive ranges of indices, where first precedes second.
+     *
+     * @return the combined result, or null if the range is empty
+     */
+
+    public static <T> T mapReduce(int start, int end, IntFunction<T> map, BinaryOperator<T> combine) {
+        if (end <= start) {
+            return null;
+        }
+        return new MapReduceTask<>(start, end, map, combine).invoke();
+    }
+
+    /**
+     * @return parallelism of the pool that runs the current thread, or of the common pool if the current thread is not a worker thread
+     */
+
+    public static int getParallelism() {
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        return pool != null ? pool.getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+    }
+
+    /**
+     * A pool whose worker threads are named after the pool, so they can be recognized in thread dumps and profiles
+     */
+
+    public static ForkJoinPool createPool(String name, int parallelism) {
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-worker-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private final int start;
+        private final int end;
+        private final int taskSize;
+        private final IntConsumer action;
+
+        private RangeTask(int start, int end, int taskSize, IntConsumer action) {
+            this.start = start;
+            this.end = end;
+            this.taskSize = taskSize;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= taskSize) {
+                for (int i = start; i < end; i++) {
+                    action.accept(i);
+                }
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new RangeTask(start, middle, taskSize, action), new RangeTask(middle, end, taskSize, action));
+            }
+        }
+    }
+
+    private static class SortTask extends RecursiveAction {
+
+        private final long[] array;
+        private final long[] buffer; //buffer[i - bufferOffset] is the temporary position of array[i]
+        private final int bufferOffset;
+        private final int start;
+        private final int end;
+        private final int taskSize;
+
+        private SortTask(long[] array, long[] buffer, int bufferOffset, int start, int end, int taskSize) {
+            this.array = array;
+            this.buffer = buffer;
+            this.bufferOffset = bufferOffset;
+            this.start = start;
+            this.end = end;
+            this.taskSize = taskSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= taskSize) {
+                Arrays.sort(array, start, end);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new SortTask(array, buffer, bufferOffset, start, middle, taskSize), new SortTask(array, buffer, bufferOffset, middle, end, taskSize));
+                merge(middle);
+            }
+        }
+
+        private void merge(int middle) {
+            int left = start;
+            int right = middle;
+            int position = start - bufferOffset;
+            while (left < middle && right < end) {
+                buffer[position++] = array[left] <= array[right] ? array[left++] : array[right++];
+            }
+            //the remaining values of the right half are already in place
+            System.arraycopy(array, left, buffer, position, middle - left);
+            position += middle - left;
+            System.arraycopy(buffer, start - bufferOffset, array, start, position - (start - bufferOffset));
+        }
+    }
+
+    private static class MapReduceTask<T> extends RecursiveTask<T> {
+
+        private final int start;
+        private final int end;
+        private final IntFunction<T> map;
+        private final BinaryOperator<T> combine;
+
+        private MapReduceTask(int start, int end, IntFunction<T> map, BinaryOperator<T> combine) {
+            this.start = start;
+            this.end = end;
+            this.map = map;
+            this.combine = combine;
+        }
+
+        @Override
+        protected T compute() {
+            if (end - start == 1) {
+                return map.apply(start);
+            } else {
+                int middle = (start + end) >>> 1;
+                MapReduceTask<T> first = new MapReduceTask<>(start, middle, map, combine);
+                MapReduceTask<T> second = new MapReduceTask<>(middle, end, map, combine);
+                invokeAll(first, second);
+                return combine.apply(first.join(), second.join());
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package be.bagofwords.brown;
+
+/**
+ * Counts the phrases of (a part of) the corpus
+ */
+public class PhraseCounter implements TokenHandler {
+
+    private final Vocabulary vocabulary = new Vocabulary();
+
+    @Override
+    public void handleToken(byte[] token, int length) {
+        vocabulary.addTo(token, length, 1);
+    }
+
+    /**
+     * Adds the counts of other, which should contain the counts of the part of the corpus that follows the part of this counter.
+     */
+
+    public PhraseCounter merge(PhraseCounter other) {
+        vocabulary.addAll(other.vocabulary);
+        return this;
+    }
+
+    /**
+     * @return all phrases, indexed in the order of their first occurrence
+     */
+
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+}
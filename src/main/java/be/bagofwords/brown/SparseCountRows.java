@@ -0,0 +1,279 @@
+package be.bagofwords.brown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Immutable counts of (row, key) pairs stored in compressed sparse row format: the keys and counts of row i are stored at
+ * positions getStart(i) (inclusive) to getEnd(i) (exclusive), sorted by key.
+ * <p/>
+ * The counts are either stored in arrays on the heap, or in a memory mapped file (see writeTo() and map()).
+ */
+public class SparseCountRows {
+
+    private static final int BYTES_PER_INT = 4;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    //arrays of counts stored on the heap, null if the counts are mapped
+    private final int[] offsets;
+    private final int[] keys;
+    private final int[] counts;
+    private final int[] totals;
+    //buffers of counts in a memory mapped file, null if the counts are stored on the heap
+    private final IntBuffer mappedOffsets;
+    private final IntBuffer mappedKeys;
+    private final IntBuffer mappedCounts;
+    private final IntBuffer mappedTotals;
+    private final int numberOfRows;
+    private final int numberOfPairs;
+
+    public SparseCountRows(int[] offsets, int[] keys, int[] counts) {
+        this.offsets = offsets;
+        this.keys = keys;
+        this.counts = counts;
+        this.totals = new int[offsets.length - 1];
+        for (int row = 0; row < totals.length; row++) {
+            for (int ind = offsets[row]; ind < offsets[row + 1]; ind++) {
+                totals[row] += counts[ind];
+            }
+        }
+        this.mappedOffsets = null;
+        this.mappedKeys = null;
+        this.mappedCounts = null;
+        this.mappedTotals = null;
+        this.numberOfRows = totals.length;
+        this.numberOfPairs = keys.length;
+        if (BrownClustering.DO_TESTS) {
+            checkRowsSorted();
+        }
+    }
+
+    private SparseCountRows(IntBuffer offsets, IntBuffer keys, IntBuffer counts, IntBuffer totals) {
+        this.offsets = null;
+        this.keys = null;
+        this.counts = null;
+        this.totals = null;
+        this.mappedOffsets = offsets;
+        this.mappedKeys = keys;
+        this.mappedCounts = counts;
+        this.mappedTotals = totals;
+        this.numberOfRows = totals.limit();
+        this.numberOfPairs = keys.limit();
+        if (BrownClustering.DO_TESTS) {
+            checkRowsSorted();
+        }
+    }
+
+    /**
+     * @param sortedPairs unique pairs, sorted ascending, with the row in the upper 32 bits and the key in the lower 32 bits
+     */
+
+    public static SparseCountRows fromSortedPairs(int numberOfRows, long[] sortedPairs, int[] counts) {
+        int[] offsets = new int[numberOfRows + 1];
+        int[] keys = new int[sortedPairs.length];
+        for (int ind = 0; ind < sortedPairs.length; ind++) {
+            offsets[getRow(sortedPairs[ind]) + 1]++;
+            keys[ind] = getKey(sortedPairs[ind]);
+        }
+        for (int row = 0; row < numberOfRows; row++) {
+            offsets[row + 1] += offsets[row];
+        }
+        return new SparseCountRows(offsets, keys, counts);
+    }
+
+    public static long packPair(int row, int key) {
+        return ((long) row << 32) | (key & 0xFFFFFFFFL);
+    }
+
+    public static int getRow(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    public static int getKey(long pair) {
+        return (int) pair;
+    }
+
+    public int getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    public int getNumberOfPairs() {
+        return numberOfPairs;
+    }
+
+    public int getStart(int row) {
+        return isValidRow(row) ? getOffset(row) : 0;
+    }
+
+    public int getEnd(int row) {
+        return isValidRow(row) ? getOffset(row + 1) : 0;
+    }
+
+    public int getKeyAt(int ind) {
+        return keys != null ? keys[ind] : mappedKeys.get(ind);
+    }
+
+    public int getCountAt(int ind) {
+        return counts != null ? counts[ind] : mappedCounts.get(ind);
+    }
+
+    public int getTotal(int row) {
+        if (!isValidRow(row)) {
+            return 0;
+        }
+        return totals != null ? totals[row] : mappedTotals.get(row);
+    }
+
+    public int getCount(int row, int key) {
+        if (!isValidRow(row)) {
+            return 0;
+        }
+        if (keys != null) {
+            int ind = Arrays.binarySearch(keys, offsets[row], offsets[row + 1], key);
+            return ind >= 0 ? counts[ind] : 0;
+        }
+        //binary search in the sorted keys of row
+        int low = mappedOffsets.get(row);
+        int high = mappedOffsets.get(row + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = mappedKeys.get(mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mappedCounts.get(mid);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return counts where rows and keys are swapped
+     */
+
+    public SparseCountRows transpose(int numberOfKeys) {
+        int[] transposedOffsets = new int[numberOfKeys + 1];
+        for (int ind = 0; ind < numberOfPairs; ind++) {
+            transposedOffsets[getKeyAt(ind) + 1]++;
+        }
+        for (int key = 0; key < numberOfKeys; key++) {
+            transposedOffsets[key + 1] += transposedOffsets[key];
+        }
+        int[] transposedKeys = new int[numberOfPairs];
+        int[] transposedCounts = new int[numberOfPairs];
+        int[] positions = Arrays.copyOf(transposedOffsets, numberOfKeys);
+        //rows are visited in increasing order, so the keys of the transposed rows are sorted
+        for (int row = 0; row < numberOfRows; row++) {
+            for (int ind = getOffset(row); ind < getOffset(row + 1); ind++) {
+                int position = positions[getKeyAt(ind)]++;
+                transposedKeys[position] = row;
+                transposedCounts[position] = getCountAt(ind);
+            }
+        }
+        return new SparseCountRows(transposedOffsets, transposedKeys, transposedCounts);
+    }
+
+    /**
+     * Number of bytes written by writeTo()
+     */
+
+    public long getSizeInBytes() {
+        return (long) BYTES_PER_INT * (2 + (numberOfRows + 1) + 2L * numberOfPairs + numberOfRows);
+    }
+
+    /**
+     * Writes the number of rows, the number of pairs, the offsets, keys, counts and totals as little endian integers at the current position
+     * of channel
+     */
+
+    public void writeTo(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(numberOfRows);
+        buffer.putInt(getNumberOfPairs());
+        if (offsets != null) {
+            for (int[] values : new int[][]{offsets, keys, counts, totals}) {
+                for (int value : values) {
+                    if (!buffer.hasRemaining()) {
+                        flush(buffer, channel);
+                    }
+                    buffer.putInt(value);
+                }
+            }
+        } else {
+            for (IntBuffer values : new IntBuffer[]{mappedOffsets, mappedKeys, mappedCounts, mappedTotals}) {
+                for (int ind = 0; ind < values.limit(); ind++) {
+                    if (!buffer.hasRemaining()) {
+                        flush(buffer, channel);
+                    }
+                    buffer.putInt(values.get(ind));
+                }
+            }
+        }
+        flush(buffer, channel);
+    }
+
+    /**
+     * Maps counts written by writeTo() at position of channel. The counts remain valid after channel is closed.
+     */
+
+    public static SparseCountRows map(FileChannel channel, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(2 * BYTES_PER_INT).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) == -1) {
+                throw new RuntimeException("Unexpected end of file while mapping counts");
+            }
+        }
+        header.flip();
+        int numberOfRows = header.getInt();
+        int numberOfPairs = header.getInt();
+        position += header.limit();
+        IntBuffer offsets = mapInts(channel, position, numberOfRows + 1);
+        position += (long) BYTES_PER_INT * (numberOfRows + 1);
+        IntBuffer keys = mapInts(channel, position, numberOfPairs);
+        position += (long) BYTES_PER_INT * numberOfPairs;
+        IntBuffer counts = mapInts(channel, position, numberOfPairs);
+        position += (long) BYTES_PER_INT * numberOfPairs;
+        IntBuffer totals = mapInts(channel, position, numberOfRows);
+        return new SparseCountRows(offsets, keys, counts, totals);
+    }
+
+    private static IntBuffer mapInts(FileChannel channel, long position, int numberOfInts) throws IOException {
+        long size = (long) BYTES_PER_INT * numberOfInts;
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Can not map more than " + Integer.MAX_VALUE / BYTES_PER_INT + " counts!");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private int getOffset(int row) {
+        return offsets != null ? offsets[row] : mappedOffsets.get(row);
+    }
+
+    private boolean isValidRow(int row) {
+        return row >= 0 && row < numberOfRows;
+    }
+
+    private void checkRowsSorted() {
+        for (int row = 0; row < numberOfRows; row++) {
+            for (int ind = getOffset(row) + 1; ind < getOffset(row + 1); ind++) {
+                if (getKeyAt(ind - 1) >= getKeyAt(ind)) {
+                    throw new RuntimeException("Keys of row " + row + " are not sorted!");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * Computes the score of moving a single phrase from its current cluster to another cluster. The result is identical to
+ * computeMergeScore(DUMMY_CLUSTER, 0.0, cluster, swapWordContextCounts) with SwapWordContextCounts, but it is computed directly
+ * from the cluster counts and the counts of the phrase projected on the clusters, without creating intermediate maps.
+ * <p/>
+ * Call setPhrase() before computing scores. After that computeScore() and computeScoreUpperBound() can be called concurrently for
+ * different clusters.
+ */
+class SwapScoreEvaluator {
+
+    private final ContextCountsImpl clusterContextCounts;
+    private final CompactContextCounts phraseContextCounts;
+    private final Int2IntOpenHashMap phraseToClusterMap;
+    //scratch buffers with the counts of the current phrase, per cluster of the previous (next) phrase. Counts of the phrase with
+    //itself are stored in selfCounts
+    private final int[] prevCountsOfPhrase;
+    private final int[] nextCountsOfPhrase;
+    private final IntArrayList prevClustersOfPhrase;
+    private final IntArrayList nextClustersOfPhrase;
+    private int phrase;
+    private int currCluster;
+    private int selfCounts;
+    private int prevTotalOfPhrase;
+    private int nextTotalOfPhrase;
+
+    public SwapScoreEvaluator(ContextCountsImpl clusterContextCounts, CompactContextCounts phraseContextCounts, Int2IntOpenHashMap phraseToClusterMap) {
+        this.clusterContextCounts = clusterContextCounts;
+        this.phraseContextCounts = phraseContextCounts;
+        this.phraseToClusterMap = phraseToClusterMap;
+        this.prevCountsOfPhrase = new int[phraseContextCounts.getNumberOfPhrases()];
+        this.nextCountsOfPhrase = new int[phraseContextCounts.getNumberOfPhrases()];
+        this.prevClustersOfPhrase = new IntArrayList();
+        this.nextClustersOfPhrase = new IntArrayList();
+    }
+
+    public void setPhrase(int phrase) {
+        clear(prevCountsOfPhrase, prevClustersOfPhrase);
+        clear(nextCountsOfPhrase, nextClustersOfPhrase);
+        this.phrase = phrase;
+        this.currCluster = phraseToClusterMap.get(phrase);
+        this.selfCounts = phraseContextCounts.getPrevRows().getCount(phrase, phrase);
+        this.prevTotalOfPhrase = phraseContextCounts.getPrevTotal(phrase);
+        this.nextTotalOfPhrase = phraseContextCounts.getNextTotal(phrase);
+        addCounts(phraseContextCounts.getPrevRows(), prevCountsOfPhrase, prevClustersOfPhrase);
+        addCounts(phraseContextCounts.getNextRows(), nextCountsOfPhrase, nextClustersOfPhrase);
+    }
+
+    public int getCurrCluster() {
+        return currCluster;
+    }
+
+    public double computeScore(int cluster) {
+        if (cluster == currCluster) {
+            return computeScoreCurrCluster();
+        } else {
+            return computeScoreOtherCluster(cluster);
+        }
+    }
+
+    /**
+     * @return true if cluster is the current cluster of the phrase, or if the phrase is preceded or followed by a phrase of cluster
+     */
+
+    public boolean isAdjacent(int cluster) {
+        return cluster == currCluster || prevCountsOfPhrase[cluster] != 0 || nextCountsOfPhrase[cluster] != 0;
+    }
+
+    /**
+     * Upper bound of computeScore() for clusters that are not adjacent to the phrase, see
+     * MutualInformationUtils.computeMergeScoreUpperBound(). Only the contexts of the phrase are visited, not those of the cluster.
+     */
+
+    public double computeScoreUpperBound(int cluster) {
+        Int2IntOpenHashMap prevCounts = clusterContextCounts.getPrevCounts(cluster);
+        Int2IntOpenHashMap nextCounts = clusterContextCounts.getNextCounts(cluster);
+        int prevTotal = clusterContextCounts.getPrevTotal(cluster);
+        int nextTotal = clusterContextCounts.getNextTotal(cluster);
+        double grandTotal = clusterContextCounts.getGrandTotal();
+        int clusterSelfCounts = nextCounts.get(cluster);
+        int mergedPrevTotal = prevTotal + prevTotalOfPhrase;
+        int mergedNextTotal = nextTotal + nextTotalOfPhrase;
+        int mergedSelfCounts = clusterSelfCounts + selfCounts;
+        double result = computeQK(mergedSelfCounts, mergedNextTotal, mergedPrevTotal) - computeQK(clusterSelfCounts, nextTotal, prevTotal);
+        //previous clusters
+        int remainingPrevCounts = prevTotal - clusterSelfCounts;
+        for (int i = 0; i < prevClustersOfPhrase.size(); i++) {
+            int prevCluster = prevClustersOfPhrase.getInt(i);
+            int count = prevCounts.get(prevCluster);
+            int prevClusterNextTotal = getNextTotalWithoutPhrase(prevCluster);
+            result += computeQK(count + prevCountsOfPhrase[prevCluster], prevClusterNextTotal, mergedPrevTotal) - computeQK(count, prevClusterNextTotal, prevTotal);
+            remainingPrevCounts -= count;
+        }
+        if (remainingPrevCounts > 0) {
+            result += remainingPrevCounts / grandTotal * Math.log(prevTotal / (double) mergedPrevTotal);
+        }
+        //next clusters
+        int oldNextTotal = nextTotal - clusterSelfCounts;
+        int newNextTotal = mergedNextTotal - mergedSelfCounts;
+        int remainingNextCounts = oldNextTotal;
+        for (int i = 0; i < nextClustersOfPhrase.size(); i++) {
+            int nextCluster = nextClustersOfPhrase.getInt(i);
+            int count = nextCounts.get(nextCluster);
+            int nextClusterPrevTotal = getPrevTotalWithoutPhrase(nextCluster);
+            result += computeQK(count + nextCountsOfPhrase[nextCluster], newNextTotal, nextClusterPrevTotal) - computeQK(count, oldNextTotal, nextClusterPrevTotal);
+            remainingNextCounts -= count;
+        }
+        if (remainingNextCounts > 0) {
+            result += remainingNextCounts / grandTotal * Math.log(oldNextTotal / (double) newNextTotal);
+        }
+        return result + MutualInformationUtils.MERGE_SCORE_BOUND_MARGIN;
+    }
+
+    /**
+     * Move the phrase from its current cluster to newCluster. Updates the cluster counts in place.
+     */
+
+    public void applySwap(int newCluster) {
+        for (int i = 0; i < prevClustersOfPhrase.size(); i++) {
+            int prevCluster = prevClustersOfPhrase.getInt(i);
+            int count = prevCountsOfPhrase[prevCluster];
+            clusterContextCounts.addBigramCount(prevCluster, currCluster, -count);
+            clusterContextCounts.addBigramCount(prevCluster, newCluster, count);
+        }
+        for (int i = 0; i < nextClustersOfPhrase.size(); i++) {
+            int nextCluster = nextClustersOfPhrase.getInt(i);
+            int count = nextCountsOfPhrase[nextCluster];
+            clusterContextCounts.addBigramCount(currCluster, nextCluster, -count);
+            clusterContextCounts.addBigramCount(newCluster, nextCluster, count);
+        }
+        clusterContextCounts.addBigramCount(currCluster, currCluster, -selfCounts);
+        clusterContextCounts.addBigramCount(newCluster, newCluster, selfCounts);
+        phraseToClusterMap.put(phrase, newCluster);
+        currCluster = newCluster;
+    }
+
+    private void addCounts(SparseCountRows rows, int[] countsOfPhrase, IntArrayList clustersOfPhrase) {
+        for (int ind = rows.getStart(phrase); ind < rows.getEnd(phrase); ind++) {
+            int otherPhrase = rows.getKeyAt(ind);
+            if (otherPhrase != phrase) {
+                int cluster = phraseToClusterMap.get(otherPhrase);
+                if (countsOfPhrase[cluster] == 0) {
+                    clustersOfPhrase.add(cluster);
+                }
+                countsOfPhrase[cluster] += rows.getCountAt(ind);
+            }
+        }
+    }
+
+    private void clear(int[] countsOfPhrase, IntArrayList clustersOfPhrase) {
+        for (int i = 0; i < clustersOfPhrase.size(); i++) {
+            countsOfPhrase[clustersOfPhrase.getInt(i)] = 0;
+        }
+        clustersOfPhrase.clear();
+    }
+
+    /**
+     * Score of moving the phrase to another cluster: computeSK() of the cluster after adding the phrase minus computeSK() of the cluster
+     * before adding the phrase, where in both cases the phrase is already removed from its current cluster.
+     */
+
+    private double computeScoreOtherCluster(int cluster) {
+        Int2IntOpenHashMap prevCounts = clusterContextCounts.getPrevCounts(cluster);
+        Int2IntOpenHashMap nextCounts = clusterContextCounts.getNextCounts(cluster);
+        int prevTotal = clusterContextCounts.getPrevTotal(cluster);
+        int nextTotal = clusterContextCounts.getNextTotal(cluster);
+        int clusterSelfCounts = nextCounts.get(cluster);
+        int countsPhraseCluster = nextCountsOfPhrase[cluster]; //phrase followed by cluster
+        int countsClusterPhrase = prevCountsOfPhrase[cluster]; //cluster followed by phrase
+        int mergedPrevTotal = prevTotal + prevTotalOfPhrase;
+        int mergedNextTotal = nextTotal + nextTotalOfPhrase;
+        int mergedSelfCounts = clusterSelfCounts + countsPhraseCluster + countsClusterPhrase + selfCounts;
+        double oldSk = 0;
+        double newSk = computeQK(mergedSelfCounts, mergedNextTotal, mergedPrevTotal);
+        //previous clusters
+        ObjectIterator<Int2IntMap.Entry> iterator = prevCounts.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int prevCluster = entry.getIntKey();
+            int count = entry.getIntValue();
+            int countWithoutPhrase = prevCluster == currCluster ? count - countsPhraseCluster : count;
+            oldSk += computeQK(countWithoutPhrase, getNextTotalWithoutPhrase(prevCluster), prevTotal);
+            if (prevCluster != cluster) {
+                newSk += computeQK(countWithoutPhrase + prevCountsOfPhrase[prevCluster], getNextTotalWithoutPhrase(prevCluster), mergedPrevTotal);
+            }
+        }
+        oldSk += computeQK(countsPhraseCluster, nextTotalOfPhrase, prevTotal);
+        for (int i = 0; i < prevClustersOfPhrase.size(); i++) {
+            int prevCluster = prevClustersOfPhrase.getInt(i);
+            if (prevCluster != cluster && !prevCounts.containsKey(prevCluster)) {
+                newSk += computeQK(prevCountsOfPhrase[prevCluster], getNextTotalWithoutPhrase(prevCluster), mergedPrevTotal);
+            }
+        }
+        //next clusters
+        int oldNextTotal = nextTotal - clusterSelfCounts;
+        int newNextTotal = mergedNextTotal - mergedSelfCounts;
+        iterator = nextCounts.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int nextCluster = entry.getIntKey();
+            if (nextCluster != cluster) {
+                int count = entry.getIntValue();
+                int countWithoutPhrase = nextCluster == currCluster ? count - countsClusterPhrase : count;
+                oldSk += computeQK(countWithoutPhrase, oldNextTotal, getPrevTotalWithoutPhrase(nextCluster));
+                newSk += computeQK(countWithoutPhrase + nextCountsOfPhrase[nextCluster], newNextTotal, getPrevTotalWithoutPhrase(nextCluster));
+            }
+        }
+        oldSk += computeQK(countsClusterPhrase, oldNextTotal, prevTotalOfPhrase);
+        for (int i = 0; i < nextClustersOfPhrase.size(); i++) {
+            int nextCluster = nextClustersOfPhrase.getInt(i);
+            if (nextCluster != cluster && !nextCounts.containsKey(nextCluster)) {
+                newSk += computeQK(nextCountsOfPhrase[nextCluster], newNextTotal, getPrevTotalWithoutPhrase(nextCluster));
+            }
+        }
+        return newSk - oldSk;
+    }
+
+    /**
+     * Score of keeping the phrase in its current cluster: computeSK() of the current cluster minus computeSK() of the current cluster
+     * without the phrase.
+     */
+
+    private double computeScoreCurrCluster() {
+        Int2IntOpenHashMap prevCounts = clusterContextCounts.getPrevCounts(currCluster);
+        Int2IntOpenHashMap nextCounts = clusterContextCounts.getNextCounts(currCluster);
+        int countsPhraseCluster = nextCountsOfPhrase[currCluster]; //phrase followed by other phrases of the current cluster
+        int countsClusterPhrase = prevCountsOfPhrase[currCluster]; //other phrases of the current cluster followed by phrase
+        int prevTotal = clusterContextCounts.getPrevTotal(currCluster) - prevTotalOfPhrase;
+        int nextTotal = clusterContextCounts.getNextTotal(currCluster) - nextTotalOfPhrase;
+        int clusterSelfCounts = nextCounts.get(currCluster) - countsPhraseCluster - countsClusterPhrase - selfCounts;
+        double reducedSk = computeQK(countsPhraseCluster, nextTotalOfPhrase, prevTotal);
+        ObjectIterator<Int2IntMap.Entry> iterator = prevCounts.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int prevCluster = entry.getIntKey();
+            if (prevCluster == currCluster) {
+                reducedSk += computeQK(clusterSelfCounts, nextTotal, prevTotal);
+            } else {
+                reducedSk += computeQK(entry.getIntValue() - prevCountsOfPhrase[prevCluster], clusterContextCounts.getNextTotal(prevCluster), prevTotal);
+            }
+        }
+        int reducedNextTotal = nextTotal - clusterSelfCounts;
+        reducedSk += computeQK(countsClusterPhrase, reducedNextTotal, prevTotalOfPhrase);
+        iterator = nextCounts.int2IntEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Int2IntMap.Entry entry = iterator.next();
+            int nextCluster = entry.getIntKey();
+            if (nextCluster != currCluster) {
+                reducedSk += computeQK(entry.getIntValue() - nextCountsOfPhrase[nextCluster], reducedNextTotal, clusterContextCounts.getPrevTotal(nextCluster));
+            }
+        }
+        return clusterContextCounts.getSk(currCluster) - reducedSk;
+    }
+
+    private int getNextTotalWithoutPhrase(int cluster) {
+        int total = clusterContextCounts.getNextTotal(cluster);
+        return cluster == currCluster ? total - nextTotalOfPhrase : total;
+    }
+
+    private int getPrevTotalWithoutPhrase(int cluster) {
+        int total = clusterContextCounts.getPrevTotal(cluster);
+        return cluster == currCluster ? total - prevTotalOfPhrase : total;
+    }
+
+    private double computeQK(int jointCounts, int totalCki, int totalCkj) {
+        return MutualInformationUtils.computeQK(jointCounts, totalCki, totalCkj, clusterContextCounts.getGrandTotal(), clusterContextCounts.getLogTable());
+    }
+}
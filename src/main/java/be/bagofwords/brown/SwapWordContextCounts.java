@@ -3,7 +3,8 @@ package be.bagofwords.brown;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 
-import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 /**
  * Created by Koen Deschacht (koendeschacht@gmail.com) on 03/12/14.
@@ -24,6 +25,16 @@ public class SwapWordContextCounts implements ContextCounts {
         this.currClusterOfPhrase = currClusterOfPhrase;
     }
 
+    @Override
+    public LogTable getLogTable() {
+        return origContextCounts.getLogTable();
+    }
+
+    @Override
+    public LongAdder getClonedMapsCounter() {
+        return origContextCounts.getClonedMapsCounter();
+    }
+
     @Override
     public int getPrevTotal(int cluster) {
         if (cluster == DUMMY_CLUSTER) {
@@ -58,10 +69,8 @@ public class SwapWordContextCounts implements ContextCounts {
     }
 
     @Override
-    public Set<Integer> getAllClusters() {
-        Set<Integer> result = origContextCounts.getAllClusters();
-        result.add(DUMMY_CLUSTER);
-        return result;
+    public IntStream getAllClusters() {
+        return IntStream.concat(origContextCounts.getAllClusters(), IntStream.of(DUMMY_CLUSTER));
     }
 
     @Override
@@ -98,7 +107,7 @@ public class SwapWordContextCounts implements ContextCounts {
 
     private Int2IntOpenHashMap reduceCounts(Int2IntOpenHashMap origCounts, Int2IntOpenHashMap countsToReduce) {
         if (countsToReduce != null) {
-            origCounts = origCounts.clone();
+            origCounts = ContextCountsUtils.cloneMap(origCounts, getClonedMapsCounter());
             for (Int2IntMap.Entry entry : countsToReduce.int2IntEntrySet()) {
                 int cluster = entry.getIntKey();
                 if (cluster == DUMMY_CLUSTER) {
@@ -118,7 +127,7 @@ public class SwapWordContextCounts implements ContextCounts {
             }
             int countToSwap = countsToSwap.get(DUMMY_CLUSTER);
             if (countToSwap > 0) {
-                origCounts = origCounts.clone();
+                origCounts = ContextCountsUtils.cloneMap(origCounts, getClonedMapsCounter());
                 origCounts.addTo(DUMMY_CLUSTER, countToSwap);
                 reduceValue(origCounts, currClusterOfPhrase, countToSwap);
             }
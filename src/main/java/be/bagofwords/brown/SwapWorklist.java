@@ -0,0 +1,116 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps track of the phrases that need to be evaluated again while swapping phrases. The score of moving a phrase depends on the counts
+ * of its own cluster and on the counts of the clusters of the phrases that occur before or after it (its context clusters). Moving a
+ * phrase changes the counts of its old and new cluster, so a phrase is evaluated again only if its own cluster or one of its context
+ * clusters was changed since the phrase was last evaluated. This includes the case where one of its neighbouring phrases was moved, since
+ * the new cluster of that neighbour was changed by the move. Other phrases keep their best cluster, although their scores could have
+ * changed slightly through the totals of the other clusters.
+ * <p/>
+ * Every accepted move gets a sequence number. A phrase needs evaluation if the maximum sequence number of the moves that changed its
+ * cluster or one of its context clusters is higher than the one at which the phrase was last evaluated.
+ * <p/>
+ * The worklist is stored in the checkpoints of the clustering (see writeTo() and readFrom()), so a resumed clustering evaluates the same
+ * phrases as an uninterrupted clustering.
+ */
+class SwapWorklist {
+
+    private CompactContextCounts phraseContextCounts;
+    private final Int2IntOpenHashMap phraseToClusterMap;
+    private final int[] evaluatedAt;
+    private final int[] clusterChangedAt;
+    private int numberOfMoves;
+
+    public SwapWorklist(CompactContextCounts phraseContextCounts, Int2IntOpenHashMap phraseToClusterMap) {
+        this(phraseContextCounts, phraseToClusterMap, new int[phraseContextCounts.getNumberOfPhrases()], new int[phraseContextCounts.getNumberOfPhrases()], 0);
+        Arrays.fill(evaluatedAt, -1); //all phrases are evaluated at least once
+    }
+
+    private SwapWorklist(CompactContextCounts phraseContextCounts, Int2IntOpenHashMap phraseToClusterMap, int[] evaluatedAt, int[] clusterChangedAt, int numberOfMoves) {
+        this.phraseContextCounts = phraseContextCounts;
+        this.phraseToClusterMap = phraseToClusterMap;
+        this.evaluatedAt = evaluatedAt;
+        this.clusterChangedAt = clusterChangedAt;
+        this.numberOfMoves = numberOfMoves;
+    }
+
+    /**
+     * A worklist read with readFrom() can only be used after the context counts of the phrases are set
+     */
+
+    public void setPhraseContextCounts(CompactContextCounts phraseContextCounts) {
+        this.phraseContextCounts = phraseContextCounts;
+    }
+
+    /**
+     * Can be called concurrently for different phrases, as long as markMoved() is not called at the same time
+     */
+
+    public boolean needsEvaluation(int phrase) {
+        int changedAt = clusterChangedAt[phraseToClusterMap.get(phrase)];
+        changedAt = Math.max(changedAt, getContextChangedAt(phraseContextCounts.getPrevRows(), phrase));
+        changedAt = Math.max(changedAt, getContextChangedAt(phraseContextCounts.getNextRows(), phrase));
+        return evaluatedAt[phrase] < changedAt;
+    }
+
+    /**
+     * Can be called concurrently for different phrases, as long as markMoved() is not called at the same time
+     */
+
+    public void markEvaluated(int phrase) {
+        evaluatedAt[phrase] = numberOfMoves;
+    }
+
+    public void markMoved(int phrase, int oldCluster, int newCluster) {
+        numberOfMoves++;
+        clusterChangedAt[oldCluster] = numberOfMoves;
+        clusterChangedAt[newCluster] = numberOfMoves;
+        //the phrase was just moved to its best cluster
+        evaluatedAt[phrase] = numberOfMoves;
+    }
+
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(evaluatedAt.length);
+        output.writeInt(numberOfMoves);
+        for (int phrase = 0; phrase < evaluatedAt.length; phrase++) {
+            output.writeInt(evaluatedAt[phrase]);
+            output.writeInt(clusterChangedAt[phrase]);
+        }
+    }
+
+    /**
+     * Reads a worklist written by writeTo(). Call setPhraseContextCounts() before using it.
+     */
+
+    public static SwapWorklist readFrom(DataInputStream input, Int2IntOpenHashMap phraseToClusterMap) throws IOException {
+        int numberOfPhrases = input.readInt();
+        int numberOfMoves = input.readInt();
+        int[] evaluatedAt = new int[numberOfPhrases];
+        int[] clusterChangedAt = new int[numberOfPhrases];
+        for (int phrase = 0; phrase < numberOfPhrases; phrase++) {
+            evaluatedAt[phrase] = input.readInt();
+            clusterChangedAt[phrase] = input.readInt();
+        }
+        return new SwapWorklist(null, phraseToClusterMap, evaluatedAt, clusterChangedAt, numberOfMoves);
+    }
+
+    /**
+     * @return the last move that changed one of the clusters of the phrases in the row of phrase
+     */
+
+    private int getContextChangedAt(SparseCountRows rows, int phrase) {
+        int result = 0;
+        for (int ind = rows.getStart(phrase); ind < rows.getEnd(phrase); ind++) {
+            result = Math.max(result, clusterChangedAt[phraseToClusterMap.get(rows.getKeyAt(ind))]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+package be.bagofwords.brown;
+
+/**
+ * Receives the phrases found by CorpusTokenizer
+ */
+public interface TokenHandler {
+
+    /**
+     * @param token  buffer with the (lowercased) bytes of the phrase. The buffer is reused for the next phrase, so it should be copied if it
+     *               needs to be kept.
+     * @param length number of valid bytes in the buffer
+     */
+
+    void handleToken(byte[] token, int length);
+
+    /**
+     * Called at the end of every line. Phrases on different lines are never adjacent.
+     */
+
+    default void handleEndOfLine() {
+    }
+}
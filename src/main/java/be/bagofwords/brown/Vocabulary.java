@@ -0,0 +1,199 @@
+package be.bagofwords.brown;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps phrases, given as a range of bytes, to consecutive indices and counts how often every phrase was added. The bytes of all phrases are
+ * stored in a single array and looked up with open addressing, so no objects are created per phrase, except by getPhrase().
+ */
+public class Vocabulary {
+
+    private static final int EMPTY_SLOT = -1;
+
+    private int[] slots; //index of the phrase stored in every slot of the hash table
+    private int[] hashes;
+    private int[] offsets; //bytes of phrase i are stored in phraseBytes[offsets[i]] to phraseBytes[offsets[i+1]]
+    private byte[] phraseBytes;
+    private int[] counts;
+    private int size;
+
+    public Vocabulary() {
+        this.slots = new int[1024];
+        Arrays.fill(slots, EMPTY_SLOT);
+        this.hashes = new int[512];
+        this.offsets = new int[513];
+        this.counts = new int[512];
+        this.phraseBytes = new byte[4096];
+        this.size = 0;
+    }
+
+    /**
+     * @return the index of the phrase, or -1 if the phrase was never added
+     */
+
+    public int get(byte[] phrase, int length) {
+        int hash = hash(phrase, 0, length);
+        return slots[findSlot(phrase, 0, length, hash)];
+    }
+
+    public int get(String phrase) {
+        byte[] bytes = phrase.getBytes(StandardCharsets.UTF_8);
+        return get(bytes, bytes.length);
+    }
+
+    /**
+     * Adds count to the counts of the phrase. New phrases are assigned the next free index.
+     *
+     * @return the index of the phrase
+     */
+
+    public int addTo(byte[] phrase, int length, int count) {
+        return addTo(phrase, 0, length, count);
+    }
+
+    private int addTo(byte[] phrase, int offset, int length, int count) {
+        int hash = hash(phrase, offset, length);
+        int slot = findSlot(phrase, offset, length, hash);
+        int index = slots[slot];
+        if (index == EMPTY_SLOT) {
+            index = addPhrase(phrase, offset, length, hash);
+            slots[slot] = index;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+        }
+        counts[index] += count;
+        return index;
+    }
+
+    public int add(String phrase) {
+        byte[] bytes = phrase.getBytes(StandardCharsets.UTF_8);
+        return addTo(bytes, bytes.length, 0);
+    }
+
+    /**
+     * Adds the phrases and counts of other to this vocabulary. New phrases are added in the order of their index in other.
+     */
+
+    public void addAll(Vocabulary other) {
+        for (int index = 0; index < other.size; index++) {
+            int offset = other.offsets[index];
+            addTo(other.phraseBytes, offset, other.offsets[index + 1] - offset, other.counts[index]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCount(int index) {
+        return counts[index];
+    }
+
+    public String getPhrase(int index) {
+        return new String(phraseBytes, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the number of phrases, followed by the length, the bytes and the count of every phrase
+     */
+
+    public void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(size);
+        for (int index = 0; index < size; index++) {
+            int offset = offsets[index];
+            int length = offsets[index + 1] - offset;
+            output.writeInt(length);
+            output.write(phraseBytes, offset, length);
+            output.writeInt(counts[index]);
+        }
+    }
+
+    /**
+     * Reads a vocabulary written by writeTo(). All phrases keep their index.
+     */
+
+    public static Vocabulary readFrom(DataInputStream input) throws IOException {
+        Vocabulary result = new Vocabulary();
+        int size = input.readInt();
+        byte[] phrase = new byte[64];
+        for (int index = 0; index < size; index++) {
+            int length = input.readInt();
+            if (length > phrase.length) {
+                phrase = new byte[Math.max(length, phrase.length * 2)];
+            }
+            input.readFully(phrase, 0, length);
+            result.addTo(phrase, length, input.readInt());
+        }
+        return result;
+    }
+
+    private int addPhrase(byte[] phrase, int phraseOffset, int length, int hash) {
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int offset = offsets[size];
+        if (offset + length > phraseBytes.length) {
+            phraseBytes = Arrays.copyOf(phraseBytes, Math.max(phraseBytes.length * 2, offset + length));
+        }
+        System.arraycopy(phrase, phraseOffset, phraseBytes, offset, length);
+        hashes[size] = hash;
+        offsets[size + 1] = offset + length;
+        return size++;
+    }
+
+    /**
+     * @return the slot that contains the phrase, or the empty slot where it should be added
+     */
+
+    private int findSlot(byte[] phrase, int phraseOffset, int length, int hash) {
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != EMPTY_SLOT && !equals(slots[slot], hash, phrase, phraseOffset, length)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean equals(int index, int hash, byte[] phrase, int phraseOffset, int length) {
+        int offset = offsets[index];
+        if (hashes[index] != hash || offsets[index + 1] - offset != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (phraseBytes[offset + i] != phrase[phraseOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, EMPTY_SLOT);
+        int mask = slots.length - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hashes[index] & mask;
+            while (slots[slot] != EMPTY_SLOT) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index;
+        }
+    }
+
+    private static int hash(byte[] phrase, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + phrase[i];
+        }
+        //spread the bits, since only the lower bits are used to select a slot
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,131 @@
+package be.bagofwords.brown;
+
+import be.bagofwords.util.Pair;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that pruning candidate clusters with upper bounds finds exactly the same clusters as scoring all candidates, and that the output
+ * is written in the same order as sorting all output lines
+ */
+public class BrownClusteringTest {
+
+    private static final int MAX_NUMBER_OF_CLUSTERS = 30;
+
+    @Test
+    public void testPruneCandidatesWhenMerging() {
+        ContextCountsImpl contextCounts = MutualInformationUtilsTest.createContextCounts(6);
+        BrownClustering pruned = createClustering(true);
+        BrownClustering notPruned = createClustering(false);
+        for (int cluster = MAX_NUMBER_OF_CLUSTERS; cluster < MutualInformationUtilsTest.NUMBER_OF_PHRASES; cluster++) {
+            Pair<Integer, Double> expected = notPruned.findBestClusterToMerge(cluster, 0, MAX_NUMBER_OF_CLUSTERS, contextCounts);
+            checkSameCluster("merge of " + cluster, expected, pruned.findBestClusterToMerge(cluster, 0, MAX_NUMBER_OF_CLUSTERS, contextCounts));
+        }
+    }
+
+    @Test
+    public void testPruneCandidatesWhenSwapping() {
+        CompactContextCounts phraseContextCounts = MutualInformationUtilsTest.createPhraseContextCounts(7);
+        Int2IntOpenHashMap phraseToClusterMap = SwapScoreEvaluatorTest.createPhraseToClusterMap();
+        ContextCountsImpl clusterContextCounts = ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap);
+        SwapScoreEvaluator swapScoreEvaluator = new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap);
+        int[] sortedClusters = IntStream.range(0, MAX_NUMBER_OF_CLUSTERS).toArray();
+        BrownClustering pruned = createClustering(true);
+        BrownClustering notPruned = createClustering(false);
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase++) {
+            swapScoreEvaluator.setPhrase(phrase);
+            Pair<Integer, Double> expected = notPruned.findBestClusterSequentially(sortedClusters, swapScoreEvaluator);
+            checkSameCluster("sequential swap of " + phrase, expected, pruned.findBestClusterSequentially(sortedClusters, swapScoreEvaluator));
+            checkSameCluster("swap of " + phrase, notPruned.findBestClusterToSwap(swapScoreEvaluator, clusterContextCounts), pruned.findBestClusterToSwap(swapScoreEvaluator, clusterContextCounts));
+        }
+    }
+
+    @Test
+    public void testWriteOutput() throws IOException {
+        Random random = new Random(3);
+        //phrases that are prefixes of each other, with spaces, upper case and non ASCII characters
+        char[] characters = {'a', 'b', 'A', ' ', '_', '\u00E9', '\u212A'};
+        Set<String> uniquePhrases = new LinkedHashSet<>();
+        while (uniquePhrases.size() < 300) {
+            StringBuilder phrase = new StringBuilder();
+            int length = 1 + random.nextInt(4);
+            for (int i = 0; i < length; i++) {
+                phrase.append(characters[random.nextInt(characters.length)]);
+            }
+            uniquePhrases.add(phrase.toString());
+        }
+        Map<Integer, String> phraseMap = new HashMap<>();
+        Int2IntOpenHashMap phraseToClusterMap = ContextCountsUtils.createNewInt2IntMap();
+        Int2IntOpenHashMap phraseFrequencies = ContextCountsUtils.createNewInt2IntMap();
+        for (String phrase : uniquePhrases) {
+            int ind = phraseMap.size();
+            phraseMap.put(ind, phrase);
+            phraseToClusterMap.put(ind, random.nextInt(MAX_NUMBER_OF_CLUSTERS));
+            phraseFrequencies.put(ind, 1 + random.nextInt(100));
+        }
+        Map<Integer, ClusterHistoryNode> leaves = new HashMap<>();
+        for (int cluster = 0; cluster < MAX_NUMBER_OF_CLUSTERS; cluster++) {
+            leaves.put(cluster, new ClusterHistoryNode(cluster));
+        }
+        //merge all clusters but the last two in a random order, the last two were never merged
+        Map<Integer, ClusterHistoryNode> nodes = new HashMap<>(leaves);
+        List<Integer> clusters = new ArrayList<>();
+        for (int cluster = 0; cluster < MAX_NUMBER_OF_CLUSTERS - 2; cluster++) {
+            clusters.add(cluster);
+        }
+        while (clusters.size() > 1) {
+            int smallCluster = clusters.remove(random.nextInt(clusters.size()));
+            int largeCluster = clusters.get(random.nextInt(clusters.size()));
+            ClusterHistoryNode parent = new ClusterHistoryNode(largeCluster);
+            parent.setChildren(nodes.remove(smallCluster), nodes.get(largeCluster));
+            nodes.put(largeCluster, parent);
+        }
+        File outputFile = File.createTempFile("output", ".txt");
+        try {
+            BrownClustering brownClustering = new BrownClustering("input.txt", outputFile.getPath(), 1, MAX_NUMBER_OF_CLUSTERS, false);
+            brownClustering.writeOutput(phraseMap, phraseToClusterMap, leaves, phraseFrequencies);
+            assertEquals(createSortedOutputLines(phraseMap, phraseToClusterMap, leaves, phraseFrequencies), Files.readAllLines(outputFile.toPath(), StandardCharsets.UTF_8));
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    /**
+     * Output lines created by walking up from the leaf of every phrase and sorting all lines
+     */
+
+    private static List<String> createSortedOutputLines(Map<Integer, String> phraseMap, Int2IntOpenHashMap phraseToClusterMap, Map<Integer, ClusterHistoryNode> leaves, Int2IntOpenHashMap phraseFrequencies) {
+        List<String> result = new ArrayList<>();
+        for (int phrase = 0; phrase < phraseMap.size(); phrase++) {
+            String path = "";
+            ClusterHistoryNode node = leaves.get(phraseToClusterMap.get(phrase));
+            while (node.getParent() != null) {
+                path = (node.getParent().getLeftChild() == node ? '0' : '1') + path;
+                node = node.getParent();
+            }
+            result.add(path + '\t' + phraseMap.get(phrase) + '\t' + phraseFrequencies.get(phrase));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static BrownClustering createClustering(boolean pruneCandidates) {
+        BrownClustering brownClustering = new BrownClustering("input.txt", "output.txt", 1, MAX_NUMBER_OF_CLUSTERS, false);
+        brownClustering.setPruneCandidates(pruneCandidates);
+        return brownClustering;
+    }
+
+    private static void checkSameCluster(String message, Pair<Integer, Double> expected, Pair<Integer, Double> actual) {
+        assertEquals("cluster of " + message, expected.getFirst(), actual.getFirst());
+        assertEquals("score of " + message, expected.getSecond(), actual.getSecond(), 0.0);
+    }
+}
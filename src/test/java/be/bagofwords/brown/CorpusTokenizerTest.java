@@ -0,0 +1,155 @@
+package be.bagofwords.brown;
+
+import be.bagofwords.util.Pair;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the reader, the memory mapped tokenizer (sequential and in parallel chunks) and the encoded corpus all find the same phrases
+ * and bigrams. The reader decodes the corpus with the default charset, so the phrases only match if that charset is UTF-8.
+ */
+public class CorpusTokenizerTest {
+
+    //mixed case, non ASCII words, the Kelvin sign, all ASCII whitespace, a byte order mark and a last line without a line break
+    private static final String LINES = "The quick Brown fox\r\n"
+            + "jumps OVER the lazy dog the fox\n"
+            + "\n"
+            + "\u00DCber na\u00EFve caf\u00E9 the fox\fthe\013quick fox_1 2nd\n"
+            + "\u212Aelvin kelvin \u212A the Fox\n"
+            + "\tthe dog\r\rthe end\u2028of line the fox\r\n";
+    private static final String CORPUS = "\uFEFFbom " + LINES + LINES + LINES + "the last line without a line break";
+    private static final int MIN_FREQUENCY_OF_PHRASE = 2;
+    //chunks of a few lines, so that every line break ends a chunk somewhere
+    private static final int SMALL_CHUNK_SIZE = 16;
+
+    @Test
+    public void testCountPhrases() throws IOException {
+        assumeTrue("default charset is not UTF-8", Charset.defaultCharset().equals(StandardCharsets.UTF_8));
+        File directory = Files.createTempDirectory("corpus").toFile();
+        try {
+            String inputFile = writeCorpus(directory);
+            Map<String, Integer> expected = BrownClustering.countAllPhrasesWithReader(inputFile);
+            assertEquals(Integer.valueOf(2 * 3), expected.get("kelvin"));
+            assertEquals(Integer.valueOf(3), expected.get("k"));
+            assertEquals(Integer.valueOf(3), expected.get("fox_1"));
+            assertFalse(expected.containsKey("caf\u00E9"));
+            assertFalse(expected.containsKey("bom"));
+            checkSamePhraseCounts("memory mapped", expected, BrownClustering.countAllPhrasesMemoryMapped(inputFile));
+            PhraseCounter phraseCounter = new PhraseCounter();
+            new CorpusTokenizer().tokenize(inputFile, phraseCounter);
+            Vocabulary vocabulary = phraseCounter.getVocabulary();
+            checkSamePhraseCounts("sequential", expected, toPhraseCounts(vocabulary));
+            Vocabulary chunkedVocabulary = CorpusTokenizer.tokenizeInParallel(inputFile, SMALL_CHUNK_SIZE, PhraseCounter::new, PhraseCounter::merge).getVocabulary();
+            checkSamePhraseCounts("small chunks", expected, toPhraseCounts(chunkedVocabulary));
+            String encodedCorpus = new File(directory, "encoded").getPath();
+            EncodedCorpus.encode(inputFile, encodedCorpus);
+            Vocabulary encodedVocabulary = EncodedCorpus.readVocabulary(encodedCorpus);
+            checkSamePhraseCounts("encoded", expected, toPhraseCounts(encodedVocabulary));
+            //phrases with the same frequency are indexed in the order of their first occurrence
+            assertEquals(getPhrases(vocabulary), getPhrases(chunkedVocabulary));
+            assertEquals(getPhrases(vocabulary), getPhrases(encodedVocabulary));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testExtractContextCounts() throws IOException {
+        assumeTrue("default charset is not UTF-8", Charset.defaultCharset().equals(StandardCharsets.UTF_8));
+        File directory = Files.createTempDirectory("corpus").toFile();
+        try {
+            String inputFile = writeCorpus(directory);
+            String encodedCorpus = new File(directory, "encoded").getPath();
+            EncodedCorpus.encode(inputFile, encodedCorpus);
+            BrownClustering withReader = createClustering(inputFile);
+            withReader.setUseMemoryMappedInput(false);
+            Pair<Map<Integer, String>, Int2IntOpenHashMap> phrases = withReader.readPhrases();
+            Map<Integer, String> phraseMap = phrases.getFirst();
+            assertTrue("no infrequent phrases", phraseMap.containsValue(BrownClustering.UNKNOWN_PHRASE));
+            CompactContextCounts expected = withReader.extractContextCounts(phraseMap);
+            checkSameContextCounts(phrases, expected, createClustering(inputFile));
+            BrownClustering withBigramBudget = createClustering(inputFile);
+            withBigramBudget.setBigramMemoryBudget(80);
+            checkSameContextCounts(phrases, expected, withBigramBudget);
+            BrownClustering withEncodedCorpus = createClustering(inputFile);
+            withEncodedCorpus.setEncodedCorpus(encodedCorpus);
+            checkSameContextCounts(phrases, expected, withEncodedCorpus);
+            withEncodedCorpus.setBigramMemoryBudget(80);
+            checkSameContextCounts(phrases, expected, withEncodedCorpus);
+            //same bigram counter as BrownClustering, but with small chunks
+            Vocabulary vocabulary = new Vocabulary();
+            for (int phrase = 0; phrase < phraseMap.size(); phrase++) {
+                vocabulary.add(phraseMap.get(phrase));
+            }
+            int unknownPhrase = vocabulary.get(BrownClustering.UNKNOWN_PHRASE);
+            BigramCounter bigramCounter = CorpusTokenizer.tokenizeInParallel(inputFile, SMALL_CHUNK_SIZE, () -> new BigramCounter(vocabulary, unknownPhrase), BigramCounter::merge);
+            ExternalBigramCounterTest.checkSameCounts(expected, CompactContextCounts.fromBigramCounts(phraseMap.size(), bigramCounter.getBigramCounts()));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void checkSameContextCounts(Pair<Map<Integer, String>, Int2IntOpenHashMap> expectedPhrases, CompactContextCounts expectedCounts, BrownClustering brownClustering) throws IOException {
+        Pair<Map<Integer, String>, Int2IntOpenHashMap> phrases = brownClustering.readPhrases();
+        assertEquals(expectedPhrases.getFirst(), phrases.getFirst());
+        assertEquals(expectedPhrases.getSecond(), phrases.getSecond());
+        ExternalBigramCounterTest.checkSameCounts(expectedCounts, brownClustering.extractContextCounts(phrases.getFirst()));
+    }
+
+    private static void checkSamePhraseCounts(String message, Map<String, Integer> expected, Map<String, Integer> actual) {
+        assertEquals(message, new HashMap<>(expected), new HashMap<>(actual));
+    }
+
+    private static BrownClustering createClustering(String inputFile) {
+        return new BrownClustering(inputFile, inputFile + ".out", MIN_FREQUENCY_OF_PHRASE, 10, false);
+    }
+
+    private static String writeCorpus(File directory) throws IOException {
+        File inputFile = new File(directory, "corpus.txt");
+        Files.write(inputFile.toPath(), CORPUS.getBytes(StandardCharsets.UTF_8));
+        return inputFile.getPath();
+    }
+
+    private static Map<String, Integer> toPhraseCounts(Vocabulary vocabulary) {
+        Map<String, Integer> result = new HashMap<>();
+        for (int phrase = 0; phrase < vocabulary.size(); phrase++) {
+            result.put(vocabulary.getPhrase(phrase), vocabulary.getCount(phrase));
+        }
+        return result;
+    }
+
+    private static List<String> getPhrases(Vocabulary vocabulary) {
+        List<String> result = new ArrayList<>();
+        for (int phrase = 0; phrase < vocabulary.size(); phrase++) {
+            result.add(vocabulary.getPhrase(phrase));
+        }
+        return result;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that counting bigrams in many small runs gives the same counts as counting them in a hash map
+ */
+public class ExternalBigramCounterTest {
+
+    private static final int NUMBER_OF_PHRASES = 50;
+    private static final int NUMBER_OF_BIGRAMS = 2000;
+
+    @Test
+    public void testCreateContextCounts() throws IOException {
+        Random random = new Random(1);
+        Long2IntOpenHashMap bigramCounts = new Long2IntOpenHashMap();
+        CompactContextCounts actual;
+        //room for a few pairs only, so the bigrams are written in many runs
+        try (ExternalBigramCounter bigramCounter = new ExternalBigramCounter(80)) {
+            for (int bigram = 0; bigram < NUMBER_OF_BIGRAMS; bigram++) {
+                int firstPhrase = (int) (NUMBER_OF_PHRASES * Math.pow(random.nextDouble(), 2));
+                int secondPhrase = (int) (NUMBER_OF_PHRASES * Math.pow(random.nextDouble(), 2));
+                bigramCounter.handleBigram(firstPhrase, secondPhrase);
+                bigramCounts.addTo(SparseCountRows.packPair(firstPhrase, secondPhrase), 1);
+            }
+            assertTrue("only " + bigramCounter.getNumberOfRuns() + " runs", bigramCounter.getNumberOfRuns() > 10);
+            actual = bigramCounter.createContextCounts(NUMBER_OF_PHRASES);
+        }
+        checkSameCounts(CompactContextCounts.fromBigramCounts(NUMBER_OF_PHRASES, bigramCounts), actual);
+    }
+
+    @Test
+    public void testCreateContextCountsWithoutRuns() throws IOException {
+        Long2IntOpenHashMap bigramCounts = new Long2IntOpenHashMap();
+        CompactContextCounts actual;
+        try (ExternalBigramCounter bigramCounter = new ExternalBigramCounter(1 << 20)) {
+            for (int bigram = 0; bigram < NUMBER_OF_BIGRAMS; bigram++) {
+                int firstPhrase = bigram % NUMBER_OF_PHRASES;
+                int secondPhrase = (bigram * 7) % NUMBER_OF_PHRASES;
+                bigramCounter.handleBigram(firstPhrase, secondPhrase);
+                bigramCounts.addTo(SparseCountRows.packPair(firstPhrase, secondPhrase), 1);
+            }
+            assertEquals(0, bigramCounter.getNumberOfRuns());
+            actual = bigramCounter.createContextCounts(NUMBER_OF_PHRASES);
+        }
+        checkSameCounts(CompactContextCounts.fromBigramCounts(NUMBER_OF_PHRASES, bigramCounts), actual);
+    }
+
+    static void checkSameCounts(CompactContextCounts expected, CompactContextCounts actual) {
+        assertEquals("number of phrases", expected.getNumberOfPhrases(), actual.getNumberOfPhrases());
+        checkSameRows("previous phrases", expected.getPrevRows(), actual.getPrevRows());
+        checkSameRows("next phrases", expected.getNextRows(), actual.getNextRows());
+    }
+
+    private static void checkSameRows(String message, SparseCountRows expected, SparseCountRows actual) {
+        assertEquals(message + ", number of pairs", expected.getNumberOfPairs(), actual.getNumberOfPairs());
+        for (int row = 0; row < expected.getNumberOfRows(); row++) {
+            assertEquals(message + ", start of row " + row, expected.getStart(row), actual.getStart(row));
+            assertEquals(message + ", end of row " + row, expected.getEnd(row), actual.getEnd(row));
+            assertEquals(message + ", total of row " + row, expected.getTotal(row), actual.getTotal(row));
+            for (int ind = expected.getStart(row); ind < expected.getEnd(row); ind++) {
+                assertEquals(message + ", key " + ind, expected.getKeyAt(ind), actual.getKeyAt(ind));
+                assertEquals(message + ", count " + ind, expected.getCountAt(ind), actual.getCountAt(ind));
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package be.bagofwords.brown;
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a merge loss table read from a checkpoint continues with exactly the same scores as the table that was written
+ */
+public class MergeLossTableTest {
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ContextCountsImpl contextCounts = MutualInformationUtilsTest.createContextCounts(3);
+        MergeLossTable mergeLossTable = new MergeLossTable(contextCounts);
+        for (int merge = 0; merge < 10; merge++) {
+            MergeCandidate next = mergeLossTable.findBestMerge();
+            mergeLossTable.mergeClusters(next.getCluster1(), next.getCluster2());
+            contextCounts.mergeClusters(next.getCluster1(), next.getCluster2());
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            mergeLossTable.writeTo(output);
+        }
+        MergeLossTable readTable = MergeLossTable.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(mergeLossTable.getNumberOfClusters(), readTable.getNumberOfClusters());
+        while (mergeLossTable.getNumberOfClusters() > 1) {
+            checkSameScores(mergeLossTable, readTable, contextCounts.getAllClusters().sorted().toArray());
+            MergeCandidate next = mergeLossTable.findBestMerge();
+            MergeCandidate readNext = readTable.findBestMerge();
+            assertEquals(next.getCluster1(), readNext.getCluster1());
+            assertEquals(next.getCluster2(), readNext.getCluster2());
+            mergeLossTable.mergeClusters(next.getCluster1(), next.getCluster2());
+            readTable.mergeClusters(next.getCluster1(), next.getCluster2());
+            contextCounts.mergeClusters(next.getCluster1(), next.getCluster2());
+        }
+    }
+
+    private void checkSameScores(MergeLossTable expected, MergeLossTable actual, int[] clusters) {
+        for (int i = 0; i < clusters.length; i++) {
+            for (int j = i + 1; j < clusters.length; j++) {
+                assertEquals("merge loss of " + clusters[i] + " and " + clusters[j], expected.getScore(clusters[i], clusters[j]), actual.getScore(clusters[i], clusters[j]), 0);
+            }
+        }
+    }
+}
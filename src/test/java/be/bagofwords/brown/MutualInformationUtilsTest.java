@@ -0,0 +1,176 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the optimized score computations of MutualInformationUtils against their reference implementations, on the counts of a small
+ * synthetic corpus
+ */
+public class MutualInformationUtilsTest {
+
+    static final int NUMBER_OF_PHRASES = 100;
+    private static final int NUMBER_OF_WORDS = 5000;
+    private static final double MERGE_SCORE_TOLERANCE = 1e-9;
+
+    @Test
+    public void testComputeMergeScore() {
+        ContextCountsImpl contextCounts = createContextCounts(1);
+        int[] clusters = contextCounts.getAllClusters().sorted().toArray();
+        int numberOfAdjacentPairs = 0;
+        int numberOfSelfAdjacentPairs = 0;
+        int numberOfNonAdjacentPairs = 0;
+        for (int cluster1 : clusters) {
+            for (int cluster2 : clusters) {
+                if (cluster1 != cluster2) {
+                    double sk1 = MutualInformationUtils.computeSK(cluster1, contextCounts);
+                    double sk2 = MutualInformationUtils.computeSK(cluster2, contextCounts);
+                    double expected = MutualInformationUtils.computeMergeScoreWithMergedCounts(cluster1, sk1, cluster2, sk2, contextCounts);
+                    double actual = MutualInformationUtils.computeMergeScore(cluster1, sk1, cluster2, sk2, contextCounts);
+                    assertEquals("merge score of " + cluster1 + " and " + cluster2, expected, actual, MERGE_SCORE_TOLERANCE);
+                    if (contextCounts.getNextCounts(cluster1).get(cluster1) > 0 || contextCounts.getNextCounts(cluster2).get(cluster2) > 0) {
+                        numberOfSelfAdjacentPairs++;
+                    }
+                    if (contextCounts.getNextCounts(cluster1).get(cluster2) > 0 || contextCounts.getPrevCounts(cluster1).get(cluster2) > 0) {
+                        numberOfAdjacentPairs++;
+                    } else {
+                        numberOfNonAdjacentPairs++;
+                    }
+                }
+            }
+        }
+        assertTrue("no adjacent pairs", numberOfAdjacentPairs > 0);
+        assertTrue("no self-adjacent pairs", numberOfSelfAdjacentPairs > 0);
+        assertTrue("no non-adjacent pairs", numberOfNonAdjacentPairs > 0);
+    }
+
+    /**
+     * The upper bound should never be lower than the score, also after some clusters were merged
+     */
+
+    @Test
+    public void testComputeMergeScoreUpperBound() {
+        ContextCountsImpl contextCounts = createContextCounts(4);
+        checkMergeScoreUpperBound(contextCounts);
+        for (int cluster = 0; cluster < 10; cluster++) {
+            contextCounts.mergeClusters(NUMBER_OF_PHRASES / 2 + cluster, cluster);
+        }
+        checkMergeScoreUpperBound(contextCounts);
+    }
+
+    private void checkMergeScoreUpperBound(ContextCounts contextCounts) {
+        int[] clusters = contextCounts.getAllClusters().sorted().toArray();
+        int numberOfNonAdjacentPairs = 0;
+        for (int cluster1 : clusters) {
+            for (int cluster2 : clusters) {
+                if (cluster1 != cluster2 && !contextCounts.getNextCounts(cluster1).containsKey(cluster2) && !contextCounts.getPrevCounts(cluster1).containsKey(cluster2)) {
+                    double score = MutualInformationUtils.computeMergeScore(cluster1, 0.0, cluster2, contextCounts);
+                    double upperBound = MutualInformationUtils.computeMergeScoreUpperBound(cluster1, cluster2, contextCounts);
+                    assertTrue("merge score " + score + " of " + cluster1 + " and " + cluster2 + " exceeds upper bound " + upperBound, score <= upperBound);
+                    numberOfNonAdjacentPairs++;
+                }
+            }
+        }
+        assertTrue("no non-adjacent pairs", numberOfNonAdjacentPairs > 0);
+    }
+
+    /**
+     * The scores of the merge loss table should match the reference scores, both initially and after they were updated incrementally
+     */
+
+    @Test
+    public void testMergeLossTable() {
+        ContextCountsImpl contextCounts = createContextCounts(2);
+        MergeLossTable mergeLossTable = new MergeLossTable(contextCounts);
+        checkMergeLossTable(mergeLossTable, contextCounts);
+        for (int merge = 0; merge < 20; merge++) {
+            MergeCandidate next = mergeLossTable.findBestMerge();
+            mergeLossTable.mergeClusters(next.getCluster1(), next.getCluster2());
+            contextCounts.mergeClusters(next.getCluster1(), next.getCluster2());
+            checkMergeLossTable(mergeLossTable, contextCounts);
+        }
+    }
+
+    private void checkMergeLossTable(MergeLossTable mergeLossTable, ContextCounts contextCounts) {
+        int[] clusters = contextCounts.getAllClusters().sorted().toArray();
+        for (int slot1 = 0; slot1 < clusters.length; slot1++) {
+            double sk1 = MutualInformationUtils.computeSK(clusters[slot1], contextCounts);
+            for (int slot2 = slot1 + 1; slot2 < clusters.length; slot2++) {
+                double sk2 = MutualInformationUtils.computeSK(clusters[slot2], contextCounts);
+                double expected = MutualInformationUtils.computeMergeScoreWithMergedCounts(clusters[slot1], sk1, clusters[slot2], sk2, contextCounts);
+                assertEquals("merge loss of " + clusters[slot1] + " and " + clusters[slot2], expected, mergeLossTable.getScore(clusters[slot1], clusters[slot2]), MERGE_SCORE_TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void testComputeQKWithLogTable() {
+        int grandTotal = 5000;
+        //a small table, so that both the lookups and the fallback to Math.log() are used
+        LogTable table = new LogTable(64);
+        int[] values = {1, 2, 3, 17, 63, 64, 65, 1000, 4999, 5000};
+        for (int jointCounts : values) {
+            for (int totalCki : values) {
+                for (int totalCkj : values) {
+                    if (jointCounts <= totalCki && jointCounts <= totalCkj) {
+                        double expected = MutualInformationUtils.computeQK(jointCounts, totalCki, totalCkj, grandTotal);
+                        double actual = MutualInformationUtils.computeQK(jointCounts, totalCki, totalCkj, grandTotal, table);
+                        assertEquals("q(" + jointCounts + ", " + totalCki + ", " + totalCkj + ")", expected, actual, MutualInformationUtils.LOG_TABLE_TOLERANCE);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testComputeSKWithLogTable() {
+        ContextCountsImpl contextCounts = createContextCounts(1);
+        checkSkWithLogTable(contextCounts);
+        //merge some clusters, so that the cached logarithms of the totals are invalidated
+        for (int cluster = 0; cluster < 10; cluster++) {
+            contextCounts.mergeClusters(NUMBER_OF_PHRASES / 2 + cluster, cluster);
+        }
+        checkSkWithLogTable(contextCounts);
+    }
+
+    private void checkSkWithLogTable(ContextCountsImpl contextCounts) {
+        int[] clusters = contextCounts.getAllClusters().toArray();
+        double[] expectedSk = new double[clusters.length];
+        contextCounts.setLogTable(null);
+        for (int ind = 0; ind < clusters.length; ind++) {
+            expectedSk[ind] = MutualInformationUtils.computeSK(clusters[ind], contextCounts);
+        }
+        contextCounts.setLogTable(new LogTable(64));
+        for (int ind = 0; ind < clusters.length; ind++) {
+            assertEquals("sk of cluster " + clusters[ind], expectedSk[ind], MutualInformationUtils.computeSK(clusters[ind], contextCounts), MutualInformationUtils.LOG_TABLE_TOLERANCE);
+            assertEquals("cached sk of cluster " + clusters[ind], expectedSk[ind], contextCounts.getSk(clusters[ind]), MutualInformationUtils.LOG_TABLE_TOLERANCE);
+        }
+    }
+
+    /**
+     * Counts of a random corpus with few phrases and a skewed distribution, so that there are adjacent, self-adjacent and non-adjacent
+     * pairs of phrases
+     */
+
+    static ContextCountsImpl createContextCounts(long seed) {
+        return createPhraseContextCounts(seed).toContextCountsImpl();
+    }
+
+    static CompactContextCounts createPhraseContextCounts(long seed) {
+        Random random = new Random(seed);
+        Long2IntOpenHashMap bigramCounts = new Long2IntOpenHashMap();
+        int prevPhrase = 0;
+        for (int word = 0; word < NUMBER_OF_WORDS; word++) {
+            //skewed towards the phrases with a low index, like the phrases of a real corpus
+            int phrase = (int) (NUMBER_OF_PHRASES * Math.pow(random.nextDouble(), 3));
+            bigramCounts.addTo(SparseCountRows.packPair(prevPhrase, phrase), 1);
+            prevPhrase = phrase;
+        }
+        return CompactContextCounts.fromBigramCounts(NUMBER_OF_PHRASES, bigramCounts);
+    }
+}
@@ -0,0 +1,63 @@
+package be.bagofwords.brown;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks sort() and mapReduce() in a pool of PARALLELISM threads, independent of the parallelism of the common pool
+ */
+public class ParallelUtilsTest {
+
+    private static final int PARALLELISM = 4;
+
+    @Test
+    public void testSort() throws Exception {
+        Random random = new Random(1);
+        for (int size : new int[]{0, 1, 1000, 100_000, 1_000_003}) {
+            long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = size > 1000 ? random.nextLong() : random.nextInt(10); //small arrays with many duplicates
+            }
+            long[] expected = values.clone();
+            Arrays.sort(expected);
+            runInPool(() -> ParallelUtils.sort(values));
+            assertArrayEquals("sorted array of size " + size, expected, values);
+        }
+    }
+
+    @Test
+    public void testSortRange() throws Exception {
+        Random random = new Random(2);
+        long[] values = random.longs(200_000).toArray();
+        long[] expected = values.clone();
+        Arrays.sort(expected, 1000, 150_000);
+        runInPool(() -> ParallelUtils.sort(values, 1000, 150_000));
+        assertArrayEquals(expected, values);
+    }
+
+    @Test
+    public void testMapReduceKeepsOrder() throws Exception {
+        String[] result = new String[1];
+        runInPool(() -> result[0] = ParallelUtils.mapReduce(0, 100, Integer::toString, (first, second) -> first + "," + second));
+        StringBuilder expected = new StringBuilder("0");
+        for (int i = 1; i < 100; i++) {
+            expected.append(",").append(i);
+        }
+        assertEquals(expected.toString(), result[0]);
+    }
+
+    private void runInPool(Runnable action) throws Exception {
+        ForkJoinPool pool = ParallelUtils.createPool("test", PARALLELISM);
+        try {
+            pool.submit(action).get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
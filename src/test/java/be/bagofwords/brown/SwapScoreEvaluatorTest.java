@@ -0,0 +1,120 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the swap scores of SwapScoreEvaluator against the merge scores of SwapWordContextCounts, and its updated counts against counts
+ * computed from scratch, on the counts of a small synthetic corpus
+ */
+public class SwapScoreEvaluatorTest {
+
+    private static final int NUMBER_OF_CLUSTERS = 30;
+    private static final double SCORE_TOLERANCE = 1e-9;
+
+    /**
+     * Every swap score should match the reference score, also after some phrases were moved
+     */
+
+    @Test
+    public void testComputeScore() {
+        CompactContextCounts phraseContextCounts = MutualInformationUtilsTest.createPhraseContextCounts(9);
+        Int2IntOpenHashMap phraseToClusterMap = createPhraseToClusterMap();
+        ContextCountsImpl clusterContextCounts = ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap);
+        SwapScoreEvaluator swapScoreEvaluator = new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap);
+        checkScores(swapScoreEvaluator, phraseToClusterMap, clusterContextCounts, phraseContextCounts);
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase += 10) {
+            swapScoreEvaluator.setPhrase(phrase);
+            swapScoreEvaluator.applySwap((swapScoreEvaluator.getCurrCluster() + 1) % NUMBER_OF_CLUSTERS);
+        }
+        checkScores(swapScoreEvaluator, phraseToClusterMap, clusterContextCounts, phraseContextCounts);
+    }
+
+    private void checkScores(SwapScoreEvaluator swapScoreEvaluator, Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts, CompactContextCounts phraseContextCounts) {
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase++) {
+            swapScoreEvaluator.setPhrase(phrase);
+            SwapWordContextCounts swapWordContextCounts = createSwapWordContextCounts(phrase, phraseToClusterMap, clusterContextCounts, phraseContextCounts);
+            for (int cluster = 0; cluster < NUMBER_OF_CLUSTERS; cluster++) {
+                double expected = MutualInformationUtils.computeMergeScore(SwapWordContextCounts.DUMMY_CLUSTER, 0.0, cluster, swapWordContextCounts);
+                assertEquals("swap score of phrase " + phrase + " to " + cluster, expected, swapScoreEvaluator.computeScore(cluster), SCORE_TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * After every swap the cluster counts should equal the counts computed from scratch, including the self counts of the phrase
+     */
+
+    @Test
+    public void testApplySwap() {
+        CompactContextCounts phraseContextCounts = MutualInformationUtilsTest.createPhraseContextCounts(10);
+        Int2IntOpenHashMap phraseToClusterMap = createPhraseToClusterMap();
+        ContextCountsImpl clusterContextCounts = ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap);
+        SwapScoreEvaluator swapScoreEvaluator = new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap);
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase += 3) {
+            swapScoreEvaluator.setPhrase(phrase);
+            int newCluster = (swapScoreEvaluator.getCurrCluster() + 7) % NUMBER_OF_CLUSTERS;
+            swapScoreEvaluator.applySwap(newCluster);
+            assertEquals("cluster of " + phrase, newCluster, phraseToClusterMap.get(phrase));
+            checkSameCounts(ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap), clusterContextCounts);
+        }
+    }
+
+    private void checkSameCounts(ContextCountsImpl expected, ContextCountsImpl actual) {
+        assertArrayEquals(expected.getAllClusters().sorted().toArray(), actual.getAllClusters().sorted().toArray());
+        assertEquals("grand total", expected.getGrandTotal(), actual.getGrandTotal());
+        expected.getAllClusters().forEach(cluster -> {
+            assertEquals("previous clusters of " + cluster, expected.getPrevCounts(cluster), actual.getPrevCounts(cluster));
+            assertEquals("next clusters of " + cluster, expected.getNextCounts(cluster), actual.getNextCounts(cluster));
+            assertEquals("previous total of " + cluster, expected.getPrevTotal(cluster), actual.getPrevTotal(cluster));
+            assertEquals("next total of " + cluster, expected.getNextTotal(cluster), actual.getNextTotal(cluster));
+            assertEquals("sk of " + cluster, expected.getSk(cluster), actual.getSk(cluster), SCORE_TOLERANCE);
+        });
+    }
+
+    @Test
+    public void testComputeScoreUpperBound() {
+        CompactContextCounts phraseContextCounts = MutualInformationUtilsTest.createPhraseContextCounts(5);
+        Int2IntOpenHashMap phraseToClusterMap = createPhraseToClusterMap();
+        ContextCountsImpl clusterContextCounts = ContextCountsUtils.computeContextCounts(phraseContextCounts, phraseToClusterMap);
+        SwapScoreEvaluator swapScoreEvaluator = new SwapScoreEvaluator(clusterContextCounts, phraseContextCounts, phraseToClusterMap);
+        int numberOfNonAdjacentPairs = 0;
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase++) {
+            swapScoreEvaluator.setPhrase(phrase);
+            SwapWordContextCounts swapWordContextCounts = createSwapWordContextCounts(phrase, phraseToClusterMap, clusterContextCounts, phraseContextCounts);
+            for (int cluster = 0; cluster < NUMBER_OF_CLUSTERS; cluster++) {
+                if (!swapScoreEvaluator.isAdjacent(cluster)) {
+                    double score = swapScoreEvaluator.computeScore(cluster);
+                    double upperBound = swapScoreEvaluator.computeScoreUpperBound(cluster);
+                    assertTrue("swap score " + score + " of phrase " + phrase + " to " + cluster + " exceeds upper bound " + upperBound, score <= upperBound);
+                    //the same bound as the one of merging the phrase with the cluster, so the bound is as tight as the merge bound
+                    double mergeUpperBound = MutualInformationUtils.computeMergeScoreUpperBound(SwapWordContextCounts.DUMMY_CLUSTER, cluster, swapWordContextCounts);
+                    assertEquals("upper bound of phrase " + phrase + " and cluster " + cluster, mergeUpperBound, upperBound, SCORE_TOLERANCE);
+                    numberOfNonAdjacentPairs++;
+                }
+            }
+        }
+        assertTrue("no non-adjacent pairs", numberOfNonAdjacentPairs > 0);
+    }
+
+    static Int2IntOpenHashMap createPhraseToClusterMap() {
+        Int2IntOpenHashMap phraseToClusterMap = ContextCountsUtils.createNewInt2IntMap();
+        for (int phrase = 0; phrase < MutualInformationUtilsTest.NUMBER_OF_PHRASES; phrase++) {
+            phraseToClusterMap.put(phrase, phrase % NUMBER_OF_CLUSTERS);
+        }
+        return phraseToClusterMap;
+    }
+
+    /**
+     * Reference counts where the phrase is removed from its cluster and kept in SwapWordContextCounts.DUMMY_CLUSTER
+     */
+
+    private static SwapWordContextCounts createSwapWordContextCounts(int phrase, Int2IntOpenHashMap phraseToClusterMap, ContextCountsImpl clusterContextCounts, CompactContextCounts phraseContextCounts) {
+        ContextCountsImpl contextCountsOfPhrase = BrownClustering.mapPhraseCountsToClusterCounts(phrase, phraseToClusterMap, phraseContextCounts, SwapWordContextCounts.DUMMY_CLUSTER);
+        return new SwapWordContextCounts(clusterContextCounts, contextCountsOfPhrase, phraseToClusterMap.get(phrase));
+    }
+}
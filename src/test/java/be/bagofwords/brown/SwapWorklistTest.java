@@ -0,0 +1,40 @@
+package be.bagofwords.brown;
+
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a worklist read from a checkpoint selects exactly the same phrases as the worklist that was written
+ */
+public class SwapWorklistTest {
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        CompactContextCounts phraseContextCounts = MutualInformationUtilsTest.createPhraseContextCounts(8);
+        Int2IntOpenHashMap phraseToClusterMap = SwapScoreEvaluatorTest.createPhraseToClusterMap();
+        SwapWorklist worklist = new SwapWorklist(phraseContextCounts, phraseToClusterMap);
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase++) {
+            worklist.markEvaluated(phrase);
+        }
+        //move a few infrequent phrases, so that only the phrases next to them need to be evaluated again
+        for (int phrase = 90; phrase < 95; phrase++) {
+            int oldCluster = phraseToClusterMap.get(phrase);
+            int newCluster = (oldCluster + 1) % phraseContextCounts.getNumberOfPhrases();
+            phraseToClusterMap.put(phrase, newCluster);
+            worklist.markMoved(phrase, oldCluster, newCluster);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            worklist.writeTo(output);
+        }
+        SwapWorklist readWorklist = SwapWorklist.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), phraseToClusterMap);
+        readWorklist.setPhraseContextCounts(phraseContextCounts);
+        for (int phrase = 0; phrase < phraseContextCounts.getNumberOfPhrases(); phrase++) {
+            assertEquals("needs evaluation of " + phrase, worklist.needsEvaluation(phrase), readWorklist.needsEvaluation(phrase));
+        }
+    }
+}